@@ -3,9 +3,9 @@ package cn.kejin.ximageview;
 import android.animation.Animator;
 import android.animation.ObjectAnimator;
 import android.animation.ValueAnimator;
+import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -13,16 +13,16 @@ import android.graphics.Rect;
 import android.graphics.RectF;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.view.animation.AccelerateDecelerateInterpolator;
 
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.UUID;
 
 /**
  * Author: Kejin ( Liang Ke Jin )
@@ -33,6 +33,11 @@ public class BitmapManager implements IBitmapManager
     protected final static boolean DEBUG = IXImageView.DEBUG;
 
     public final static String TAG = "BitmapManager";
+
+    /**
+     * 默认的单元格大小, 以原图的像素为单位
+     */
+    public final static int DEFAULT_TILE_SIZE = 512;
     private final static Paint mPaint = new Paint();
 
     static {
@@ -46,31 +51,93 @@ public class BitmapManager implements IBitmapManager
 
     /**
      * 异步处理图片的解码
+     * 使用共享的调度器时, 所有的 BitmapManager 共享同一个 loading 线程
      */
     private Handler mLoadingHandler = null;
-    private final HandlerThread mLoadingThread;
+    private HandlerThread mLoadingThread = null;
     private final static String THREAD_NAME = "XImageLoader";
 
+    private static HandlerThread sSharedLoadingThread = null;
+
     /**
-     * Decoder
+     * 解码单元格的调度器, 每个解码线程在解码时从 mDecoder 中取出一个独立的 decoder
      */
-    private BitmapRegionDecoder mDecoder = null;
+    private TileScheduler.Client mTileScheduler = null;
 
     /**
-     * 如果直接设置bitmap
+     * 是否使用整个应用共享的调度器, 以及当前的调度器是不是共享的
      */
-    private Bitmap mSrcBitmap = null;
+    private boolean mUseSharedScheduler = false;
+    private boolean mIsSchedulerShared = false;
+
+    /**
+     * view 是否在屏幕上, 共享调度器时优先解码在屏幕上的 view
+     */
+    private boolean mIsOnScreen = true;
+
+    /**
+     * 单元格的大小, 以原图的像素为单位, 和 view 的尺寸无关
+     */
+    private int mTileSize = DEFAULT_TILE_SIZE;
+
+    /**
+     * 是否按照显示的分辨率解码 (1/4 个八度), 以及当前图片是否使用, 设置图片时才更新
+     */
+    private boolean mExactResolutionEnabled = false;
+    private boolean mIsExactResolution = false;
+
+    /**
+     * 解码线程的数量, 也是最多打开的 decoder 的数量
+     */
+    private int mDecodeWorkerCount = DecoderPool.getDefaultCount();
+
+    /**
+     * Decoder, 输入流使用 DecoderPool, 缓存的 bitmap 使用 PixelFileDecoder
+     */
+    private IRegionDecoder mDecoder = null;
+
+    /**
+     * 打开 mDecoder 时使用的锁, 打开大图很耗时, 所以不用 BitmapManager 本身的锁
+     */
+    private final Object mDecoderLock = new Object();
+
+    /**
+     * 磁盘缓存, 只有在开启时并且知道图片源的标识时才会使用
+     */
+    private boolean mDiskCacheEnabled = false;
+    private DiskTileCache mDiskCache = null;
+
+    /**
+     * 图片源的标识, 作为磁盘缓存的 key
+     */
+    private String mSourceKey = null;
+
+    /**
+     * 这张图片的预加载结果 (ImagePreloader), 接管之后第一次初始化网格时使用其中的缩略图
+     */
+    private ImagePreloader.Entry mPreloaded = null;
+
+    /**
+     * 单元格 bitmap 的复用池, 包括缩略图
+     */
+    private final BitmapPool mBitmapPool = new BitmapPool();
 
     /**
-     * Cache 文件
+     * 如果直接设置bitmap
      */
-    private final File mCacheFile;
+    private Bitmap mSrcBitmap = null;
 
     /**
      * 质量参数, 默认为 RGB_565
      */
     private Bitmap.Config mBitmapConfig = Bitmap.Config.RGB_565;
 
+    /**
+     * 是否根据图片自动选择 config (setImage 时 config 为 null),
+     * 打开 decoder 之前读取文件头, 不透明的图片使用 RGB_565, 其他使用 ARGB_8888
+     */
+    private boolean mIsAutoConfig = false;
+
     /**
      * 当前图片的的采样率
      */
@@ -113,11 +180,40 @@ public class BitmapManager implements IBitmapManager
      */
     private Rect mThumbShowBitmapRect = new Rect();
 
+    /**
+     * 画图, 拖动和缩放时复用的临时对象, 只在 UI 线程中使用, 避免每一帧都分配对象
+     */
+    private final Rect mTmpRect = new Rect();
+    private final RectF mTmpRectF = new RectF();
+    private final RectF mTmpScaleRectF = new RectF();
+    private final Rect mTmpScaleRect = new Rect();
+
     /**
      * Bitmap 网格
      */
     private BitmapGrid mBitmapGrid = new BitmapGrid();
 
+    /**
+     * 单元格 tile 的缓存, 以字节数为预算
+     */
+    private final TileCache mTileCache = new TileCache(mBitmapGrid);
+
+    /**
+     * 被淘汰的 tile 压缩之后保存在内存中, 默认关闭
+     */
+    private final CompressedTileCache mCompressedCache = new CompressedTileCache();
+
+    /**
+     * 正在 trimMemory(), 这时淘汰的 tile 不再压缩保存, 只在 UI 线程中使用
+     */
+    private boolean mIsTrimmingMemory = false;
+
+    /**
+     * 拖动时的帧缓存, 默认关闭, 只在 UI 线程中使用
+     */
+    private final FrameCache mFrameCache = new FrameCache();
+    private boolean mFrameCacheEnabled = false;
+
     /**
      * 动画
      */
@@ -130,8 +226,6 @@ public class BitmapManager implements IBitmapManager
     private float mMaxScaleValue = MAX_SCALE_FACTOR;
     private float mMinScaleValue = 1f;
 
-    private final Object mBitmapLock = new Object();
-
     /**
      * 用于和XImageView 回调的接口
      */
@@ -142,12 +236,15 @@ public class BitmapManager implements IBitmapManager
      */
     private boolean mIsSettingImage = true;
 
+    /**
+     * setImage() 的时间, 以及之后是否已经画出了第一帧, 用于统计首帧时间
+     */
+    private long mSetImageTime = 0;
+    private boolean mIsFirstFrameDrawn = false;
+
     public BitmapManager(@NonNull IXImageView view)
     {
         mXImageView = view;
-        mLoadingThread = new HandlerThread(THREAD_NAME + this.hashCode());
-        mCacheFile = new File(mXImageView.getCacheDir(), UUID.randomUUID().toString());
-        mCacheFile.deleteOnExit();
 
         // 默认一个, 等onViewSizeChanged的时候再更新
 //        mViewRect.set(0, 0, 1920, 1080);
@@ -160,7 +257,10 @@ public class BitmapManager implements IBitmapManager
     @Override
     public void setBitmap(Bitmap bitmap, boolean cache)
     {
-        initialize(Bitmap.Config.ARGB_8888);
+        /**
+         * 直接使用 bitmap 本身的 config, 切割和缓存都不会改变 config
+         */
+        initialize(bitmap == null || bitmap.getConfig() == null ? Bitmap.Config.ARGB_8888 : bitmap.getConfig());
         setSrcBitmap(bitmap, cache);
     }
 
@@ -171,9 +271,58 @@ public class BitmapManager implements IBitmapManager
      */
     @Override
     public void setInputStream(InputStream is, Bitmap.Config config)
+    {
+        setInputStream(is, config, null);
+    }
+
+    /**
+     * @param is 设置输入流
+     * @param config config, null 时根据图片自动选择
+     * @param sourceKey 图片源的标识, 开启磁盘缓存时用来读取之前解码过的缩略图和 tile
+     */
+    @Override
+    public void setInputStream(InputStream is, Bitmap.Config config, String sourceKey)
+    {
+        initialize(config);
+        mSourceKey = mDiskCacheEnabled ? sourceKey : null;
+        mPreloaded = ImagePreloader.take(sourceKey, config, mTileSize);
+
+        /**
+         * 自动选择 config 时需要先读取文件头, 然后再从头开始解码
+         */
+        if (mIsAutoConfig && is != null && !is.markSupported()) {
+            is = new BufferedInputStream(is);
+        }
+        setBitmapDecoder(is, null, null);
+    }
+
+    /**
+     * 直接通过文件路径打开, 每个解码线程都可以独立地打开这个文件
+     *
+     * @param file 文件
+     * @param config config, null 时根据图片自动选择
+     * @param sourceKey 图片源的标识, 开启磁盘缓存时用来读取之前解码过的缩略图和 tile
+     */
+    @Override
+    public void setFile(File file, Bitmap.Config config, String sourceKey)
+    {
+        initialize(config);
+        mSourceKey = mDiskCacheEnabled ? sourceKey : null;
+        mPreloaded = ImagePreloader.take(sourceKey, config, mTileSize);
+        setBitmapDecoder(null, file == null ? null : file.getAbsolutePath(), null);
+    }
+
+    /**
+     * 通过 FileDescriptor 打开, 只会使用一个 decoder
+     *
+     * @param fd FileDescriptor, 由调用者负责关闭, 在 destroy() 或者设置下一张图片之前不能关闭
+     * @param config config, null 时根据图片自动选择
+     */
+    @Override
+    public void setFileDescriptor(FileDescriptor fd, Bitmap.Config config)
     {
         initialize(config);
-        setBitmapDecoder(is);
+        setBitmapDecoder(null, null, fd);
     }
 
     /**
@@ -182,23 +331,102 @@ public class BitmapManager implements IBitmapManager
     private synchronized void initialize(Bitmap.Config config)
     {
         onSetImageStart();
+        mSetImageTime = System.nanoTime();
+        mIsFirstFrameDrawn = false;
 
         if (mLoadingHandler != null) {
             mLoadingHandler.removeCallbacks(mInstanceDecoderRunnable);
             mLoadingHandler.removeCallbacks(mCacheBitmapRunnable);
-            mLoadingHandler.removeCallbacks(mBitmapGrid.mDecodeThumbRunnable);
+            mLoadingHandler.removeCallbacks(mBitmapGrid.mDecodeSinglePassRunnable);
         }
+        mBitmapGrid.cancelThumbs();
+        mCompressedCache.clear();
 
-        mLoadingThread.quit();
-        if (mDecoder != null) {
-            mDecoder.recycle();
-            mDecoder = null;
+        synchronized (mDecoderLock) {
+            if (mDecoder != null) {
+                mDecoder.recycle();
+                mDecoder = null;
+            }
+            clearTempSource();
+            releasePreloaded();
         }
+        mSourceKey = null;
 
+        mIsAutoConfig = config == null;
+        mIsExactResolution = mExactResolutionEnabled;
         mBitmapConfig = config == null ? Bitmap.Config.RGB_565 : config;
 
-        mLoadingThread.start();
-        mLoadingHandler = new Handler(mLoadingThread.getLooper());
+        /**
+         * 切换了是否共享调度器时, 释放原来的调度器和 loading 线程
+         */
+        if (mTileScheduler != null && mIsSchedulerShared != mUseSharedScheduler) {
+            releaseScheduler();
+        }
+
+        if (mTileScheduler == null) {
+            mIsSchedulerShared = mUseSharedScheduler;
+            if (mIsSchedulerShared) {
+                mTileScheduler = TileScheduler.getShared().newClient(mBitmapGrid);
+                mLoadingHandler = new Handler(getSharedLoadingLooper());
+            }
+            else {
+                mTileScheduler = newOwnScheduler();
+                mLoadingThread = new HandlerThread(THREAD_NAME + this.hashCode());
+                mLoadingThread.start();
+                mLoadingHandler = new Handler(mLoadingThread.getLooper());
+            }
+            mTileScheduler.setForeground(mIsOnScreen);
+        }
+        else if (!mIsSchedulerShared && mTileScheduler.getScheduler().getWorkerCount() != mDecodeWorkerCount) {
+            /**
+             * 解码线程的数量改变了, 换成新的调度器, loading 线程继续使用
+             */
+            TileScheduler.Client old = mTileScheduler;
+            old.release();
+            old.getScheduler().shutdown();
+            mTileScheduler = newOwnScheduler();
+            mTileScheduler.setForeground(mIsOnScreen);
+        }
+        mTileScheduler.cancelAll();
+    }
+
+    private TileScheduler.Client newOwnScheduler()
+    {
+        return new TileScheduler(THREAD_NAME + this.hashCode(), mDecodeWorkerCount).newClient(mBitmapGrid);
+    }
+
+    private static synchronized Looper getSharedLoadingLooper()
+    {
+        if (sSharedLoadingThread == null) {
+            sSharedLoadingThread = new HandlerThread(THREAD_NAME + "-shared");
+            sSharedLoadingThread.start();
+        }
+
+        return sSharedLoadingThread.getLooper();
+    }
+
+    /**
+     * 释放调度器, 自己的调度器和 loading 线程会被停止, 共享的只是不再使用
+     */
+    private void releaseScheduler()
+    {
+        if (mTileScheduler != null) {
+            mTileScheduler.release();
+            if (!mIsSchedulerShared) {
+                mTileScheduler.getScheduler().shutdown();
+            }
+            mTileScheduler = null;
+        }
+
+        if (mLoadingHandler != null) {
+            mLoadingHandler.removeCallbacksAndMessages(null);
+            mLoadingHandler = null;
+        }
+
+        if (mLoadingThread != null) {
+            mLoadingThread.quit();
+            mLoadingThread = null;
+        }
     }
 
     /**
@@ -230,62 +458,181 @@ public class BitmapManager implements IBitmapManager
         }
     }
 
+    /**
+     * 将 bitmap 的原始像素写入缓存文件, 之后所有的单元格都从这个文件中读取,
+     * 不再持有原来的 bitmap
+     */
     protected Runnable mCacheBitmapRunnable = new Runnable()
     {
         @Override
         public void run()
         {
+            Bitmap bitmap = mSrcBitmap;
+            if (bitmap == null) {
+                return;
+            }
+
+            long before = System.currentTimeMillis();
             try {
-                FileOutputStream fos = new FileOutputStream(mCacheFile);
-                mSrcBitmap.compress(Bitmap.CompressFormat.JPEG, 100, fos);
-                fos.flush();
-                fos.close();
+                PixelFileDecoder decoder = PixelFileDecoder.newInstance(mXImageView.getCacheDir(), bitmap);
+                synchronized (mDecoderLock) {
+                    mDecoder = decoder;
+                    mSrcBitmap = null;
+                }
 
-                setBitmapDecoder(new FileInputStream(mCacheFile));
+                /**
+                 * 读取出来的像素和原图的 config 一样
+                 */
+                mBitmapConfig = decoder.getConfig();
+                mImageRect.set(0, 0, decoder.getWidth(), decoder.getHeight());
             }
-            catch (Exception e) {
+            catch (IOException e) {
+                /**
+                 * 不能缓存时直接使用 bitmap
+                 */
                 e.printStackTrace();
-                onSetImageFinished(false);
+                mImageRect.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
             }
+
+            if (DEBUG) {
+                Log.e(TAG, "cache bitmap Spend Time: " + (System.currentTimeMillis() - before));
+            }
+
+            updateViewRect(mViewRect.width(), mViewRect.height());
         }
     };
 
     /**
      * 设置 BitmapRegionDecoder 这个函数只会走一次
+     * is, path, fd 只有一个不为 null
      */
-    private void setBitmapDecoder(final InputStream is)
+    private void setBitmapDecoder(InputStream is, String path, FileDescriptor fd)
     {
-        mTempInputStream = is;
-        if (is == null) {
+        synchronized (mDecoderLock) {
+            mTempInputStream = is;
+            mTempFilePath = path;
+            mTempFileDescriptor = fd;
+        }
+
+        if (is == null && path == null && fd == null) {
             onSetImageFinished(true);
             return;
         }
 
+        /**
+         * 已经预加载完成时直接接管, 不用等待 loading 线程
+         */
+        ImagePreloader.Entry entry = mPreloaded;
+        if (entry != null && entry.isLoaded() && attachPreloadedDecoder()) {
+            updateViewRect(mViewRect.width(), mViewRect.height());
+            return;
+        }
+
         mLoadingHandler.post(mInstanceDecoderRunnable);
     }
 
+    /**
+     * 接管预加载打开的 decoder, 还在预加载时会等待完成
+     *
+     * @return 没有预加载或者预加载失败时返回 false, 这时仍然使用原来的图片源
+     */
+    private boolean attachPreloadedDecoder()
+    {
+        ImagePreloader.Entry entry = mPreloaded;
+        if (entry == null) {
+            return false;
+        }
+
+        entry.await();
+        IRegionDecoder decoder = entry.takeDecoder();
+        if (decoder == null) {
+            return false;
+        }
+
+        synchronized (mDecoderLock) {
+            /**
+             * 等待的时候已经设置了其他图片
+             */
+            if (mPreloaded != entry) {
+                decoder.recycle();
+                return false;
+            }
+
+            mDecoder = decoder;
+            clearTempSource();
+        }
+
+        mBitmapConfig = entry.getConfig();
+        mImageRect.set(0, 0, decoder.getWidth(), decoder.getHeight());
+        return true;
+    }
+
+    /**
+     * 释放还没有使用的预加载结果
+     */
+    private void releasePreloaded()
+    {
+        if (mPreloaded != null) {
+            mPreloaded.release();
+            mPreloaded = null;
+        }
+    }
+
+    /**
+     * 还没有打开 decoder 的图片源
+     */
     private InputStream mTempInputStream = null;
+    private String mTempFilePath = null;
+    private FileDescriptor mTempFileDescriptor = null;
+
     protected Runnable mInstanceDecoderRunnable = new Runnable()
     {
         @Override
         public void run()
         {
-            try {
-                long before = System.currentTimeMillis();
+            long before = System.currentTimeMillis();
 
-                mDecoder = BitmapRegionDecoder.newInstance(mTempInputStream, false);
-                mImageRect.set(0, 0, mDecoder.getWidth(), mDecoder.getHeight());
+            /**
+             * 预加载已经打开了 decoder 时直接使用, 否则先确定 config
+             */
+            boolean preloaded = attachPreloadedDecoder();
+            if (!preloaded) {
+                resolveAutoConfig();
+            }
 
-                if (DEBUG) {
-                    Log.e(TAG, "new decoder Spend Time: " + (System.currentTimeMillis() - before));
+            /**
+             * 如果磁盘缓存中有这张图片的尺寸, 就先不打开 decoder,
+             * 缩略图可以直接从磁盘缓存中读取, 需要解码时再打开
+             */
+            String sourceKey = mSourceKey;
+            DiskTileCache diskCache = getDiskCache();
+            int[] size = (preloaded || diskCache == null) ? null : diskCache.getImageSize(sourceKey);
+            if (preloaded) {
+                /**
+                 * 预加载已经读取了尺寸
+                 */
+            }
+            else if (size != null) {
+                mImageRect.set(0, 0, size[0], size[1]);
+            }
+            else {
+                IRegionDecoder decoder = openDecoder();
+                if (decoder != null) {
+                    mImageRect.set(0, 0, decoder.getWidth(), decoder.getHeight());
+                    if (diskCache != null) {
+                        diskCache.putImageSize(sourceKey, decoder.getWidth(), decoder.getHeight());
+                    }
+                }
+                else {
+                    mImageRect.setEmpty();
                 }
             }
-            catch (IOException e) {
-                e.printStackTrace();
-                mDecoder = null;
+
+            if (DEBUG) {
+                Log.e(TAG, "new decoder Spend Time: " + (System.currentTimeMillis() - before));
             }
 
-            if (mDecoder != null) {
+            if (!mImageRect.isEmpty()) {
                 updateViewRect(mViewRect.width(), mViewRect.height());
             }
             else {
@@ -294,6 +641,114 @@ public class BitmapManager implements IBitmapManager
         }
     };
 
+    /**
+     * 获取 decoder, 如果还没有打开就先打开, 可以在任意线程中调用
+     *
+     * @return 打开失败返回 null
+     */
+    private IRegionDecoder openDecoder()
+    {
+        IRegionDecoder decoder = mDecoder;
+        if (decoder != null) {
+            return decoder;
+        }
+
+        synchronized (mDecoderLock) {
+            if (mDecoder == null && hasTempSource()) {
+                try {
+                    if (mTempFilePath != null) {
+                        mDecoder = DecoderPool.newInstance(mTempFilePath, mDecodeWorkerCount);
+                    }
+                    else if (mTempFileDescriptor != null) {
+                        mDecoder = DecoderPool.newInstance(mTempFileDescriptor);
+                    }
+                    else {
+                        mDecoder = DecoderPool.newInstance(mTempInputStream);
+                    }
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                    mDecoder = null;
+                }
+                catch (OutOfMemoryError e) {
+                    /**
+                     * 图片太大, 当作打开失败, 不能让 loading 线程退出
+                     */
+                    Log.e(TAG, "Open decoder failed: " + e);
+                    mDecoder = null;
+                }
+                mTempInputStream = null;
+                mTempFilePath = null;
+                mTempFileDescriptor = null;
+            }
+
+            return mDecoder;
+        }
+    }
+
+    /**
+     * 自动选择 config 时, 读取还没有打开的图片源的文件头来确定 config
+     * 要在读取磁盘缓存和解码之前调用, 因为磁盘缓存的 key 中包括 config
+     */
+    private void resolveAutoConfig()
+    {
+        synchronized (mDecoderLock) {
+            if (!mIsAutoConfig || !hasTempSource()) {
+                return;
+            }
+
+            if (mTempFilePath != null) {
+                mBitmapConfig = ImageHeader.getConfig(mTempFilePath);
+            }
+            else if (mTempFileDescriptor != null) {
+                mBitmapConfig = ImageHeader.getConfig(mTempFileDescriptor);
+            }
+            else {
+                mBitmapConfig = ImageHeader.getConfig(mTempInputStream);
+            }
+            mIsAutoConfig = false;
+        }
+    }
+
+    private boolean hasTempSource()
+    {
+        return mTempInputStream != null || mTempFilePath != null || mTempFileDescriptor != null;
+    }
+
+    /**
+     * 丢弃还没有打开的图片源, 输入流会被关闭, FileDescriptor 由调用者关闭
+     */
+    private void clearTempSource()
+    {
+        mTempFilePath = null;
+        mTempFileDescriptor = null;
+        if (mTempInputStream != null) {
+            try {
+                mTempInputStream.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            mTempInputStream = null;
+        }
+    }
+
+    /**
+     * 有磁盘缓存时 decoder 会推迟打开, 这时输入流还没有被读取
+     */
+    private boolean hasImageSource()
+    {
+        return mSrcBitmap != null || mDecoder != null || hasTempSource();
+    }
+
+    /**
+     * @return 当前图片可以使用的磁盘缓存, 没有开启或者不知道图片源的标识时返回 null
+     */
+    private DiskTileCache getDiskCache()
+    {
+        return mSourceKey == null ? null : mDiskCache;
+    }
+
     /**
      * 设置视图的尺寸, 并初始化其他相关尺寸
      *
@@ -321,47 +776,109 @@ public class BitmapManager implements IBitmapManager
         mMinScaleValue = Math.min(1, getMinFitViewValue());
 
         /**
-         * 计算要缩放的比例
+         * 初始大小, 并设置为正中间
          */
-        int width = (int) (iw * 1.0f / ih * vh);
-        float ratio = (width > vw) ? (iw * 1f / vw) : (ih * 1f / vh);
+        updateInitShowBitmapRect(vw, vh);
+        resetShowBitmapRect();
 
         /**
-         * 如果要放大显示，就不用缩放了
+         * 计算出Sample Size
          */
-        ratio = ratio < 1 ? 1f : ratio;
-        mShowBitmapRect.set(0, 0, (int) (iw / ratio), (int) (ih / ratio));
+        mSampleSize = getCurSampleSize();
 
         /**
-         * 保存初始大小
+         * 初始化缩略图
+         * 保存缩略图时的Sample值
          */
-//        mThumbShowBitmapRect.set(mShowBitmapRect);
-        mShowBitmapRect.round(mThumbShowBitmapRect);
+        mThumbSampleSize = mSampleSize;
 
         /**
-         * 设置为正中间
+         * 初始化Grid
          */
-        int left = (int) ((mShowBitmapRect.width() - mViewRect.width()) / 2);
-        int right = left + mViewRect.width();
-        int top = (int) ((mShowBitmapRect.height() - mViewRect.height()) / 2);
-        int bottom = top + mViewRect.height();
-        mViewBitmapRect.set(left, top, right, bottom);
+        mBitmapGrid.initializeBitmapGrid();
+    }
+
+    /**
+     * 计算初始显示的大小: 等比缩小到刚好放进 view, 比 view 小时不放大
+     */
+    private void updateInitShowBitmapRect(int vw, int vh)
+    {
+        int iw = mImageRect.width();
+        int ih = mImageRect.height();
 
         /**
-         * 计算出Sample Size
+         * 计算要缩放的比例
          */
-        mSampleSize = getCurSampleSize();
+        int width = (int) (iw * 1.0f / ih * vh);
+        float ratio = (width > vw) ? (iw * 1f / vw) : (ih * 1f / vh);
 
         /**
-         * 初始化缩略图
-         * 保存缩略图时的Sample值
+         * 如果要放大显示，就不用缩放了
          */
-        mThumbSampleSize = mSampleSize;
+        ratio = ratio < 1 ? 1f : ratio;
 
         /**
-         * 初始化Grid
+         * 保存初始大小
          */
-        mBitmapGrid.initializeBitmapGrid();
+        mThumbShowBitmapRect.set(0, 0, (int) (iw / ratio), (int) (ih / ratio));
+    }
+
+    /**
+     * 是否可以只更新显示的区域, 不用重新初始化网格
+     * 网格只和原图的尺寸以及单元格的大小有关, 和 view 的尺寸无关
+     */
+    private boolean canResizeViewRect(int vw, int vh)
+    {
+        return !mIsSettingImage && hasImageSource() && mBitmapGrid.mGrids != null &&
+                vw > 0 && vh > 0 && mViewRect.width() > 0 && mViewRect.height() > 0 &&
+                mImageRect.width() > 0 && mImageRect.height() > 0;
+    }
+
+    /**
+     * view 的尺寸改变时 (旋转屏幕, 分屏) 只更新显示的区域,
+     * decoder, 已经解码的 tile 和缩略图都保留, 之后按照新的可见区域和 sample size 只解码缺少的单元格
+     *
+     * 原来是初始大小时, 缩放到新的初始大小; 否则保持缩放比例, 并且保持 view 中心对应的图片位置
+     */
+    private void resizeViewRect(int vw, int vh)
+    {
+        if (mValueAnimator != null && mValueAnimator.isRunning()) {
+            mValueAnimator.cancel();
+        }
+
+        float sw = mShowBitmapRect.width();
+        float sh = mShowBitmapRect.height();
+        boolean isInitSize = sw <= mThumbShowBitmapRect.width() && sh <= mThumbShowBitmapRect.height();
+        float scale = sw / mImageRect.width();
+        float cx = mViewBitmapRect.exactCenterX() / sw;
+        float cy = mViewBitmapRect.exactCenterY() / sh;
+
+        mViewRect.set(0, 0, vw, vh);
+        mMaxScaleValue = Math.max(MAX_SCALE_FACTOR, getMaxFitViewValue());
+        mMinScaleValue = Math.min(1, getMinFitViewValue());
+        updateInitShowBitmapRect(vw, vh);
+
+        scale = Math.min(scale, mMaxScaleValue);
+        sw = mImageRect.width() * scale;
+        sh = mImageRect.height() * scale;
+        if (isInitSize || sw <= mThumbShowBitmapRect.width() || sh <= mThumbShowBitmapRect.height()) {
+            resetShowBitmapRect();
+        }
+        else {
+            /**
+             * 比 view 小的一边居中, 否则不能超出边界
+             */
+            int left = (int) (sw < vw ? (sw - vw) / 2 : Math.max(0, Math.min(sw - vw, cx * sw - vw / 2f)));
+            int top = (int) (sh < vh ? (sh - vh) / 2 : Math.max(0, Math.min(sh - vh, cy * sh - vh / 2f)));
+            mShowBitmapRect.set(0, 0, (int) sw, (int) sh);
+            mViewBitmapRect.set(left, top, left + vw, top + vh);
+        }
+
+        mSampleSize = getCurSampleSize();
+        mBitmapGrid.cancelPrediction();
+        mFrameCache.invalidate();
+
+        mXImageView.callPostInvalidate();
     }
 
     /**
@@ -485,13 +1002,9 @@ public class BitmapManager implements IBitmapManager
      */
     private void updateViewBitmapRect(RectF rect)
     {
-        Rect vRect = new Rect(0, 0, mViewRect.width(), mViewRect.height());
-        vRect.left = (int) -rect.left;
-        vRect.right = vRect.left + mViewRect.width();
-        vRect.top = (int) -rect.top;
-        vRect.bottom = vRect.top + mViewRect.height();
-
-        mViewBitmapRect.set(vRect);
+        int left = (int) -rect.left;
+        int top = (int) -rect.top;
+        mViewBitmapRect.set(left, top, left + mViewRect.width(), top + mViewRect.height());
         mShowBitmapRect.set(0, 0, rect.width(), rect.height());
     }
 
@@ -501,6 +1014,14 @@ public class BitmapManager implements IBitmapManager
     private synchronized boolean checkOrUpdateViewRect(int width, int height)
     {
         if (mViewRect.width() != width || mViewRect.height() != height) {
+            /**
+             * 已经显示出来的图片不用重新初始化, 这一帧可以直接画出来
+             */
+            if (canResizeViewRect(width, height)) {
+                resizeViewRect(width, height);
+                return false;
+            }
+
             onSetImageStart();
             updateViewRect(width, height);
             return true;
@@ -518,22 +1039,6 @@ public class BitmapManager implements IBitmapManager
         return mShowBitmapRect.height() * 1f / mImageRect.height();
     }
 
-    /**
-     * 计算原图和真实bitmap之间的比例
-     */
-    private float getRealImageRatio()
-    {
-        return 1f / mSampleSize;
-    }
-
-    /**
-     * 计算真实bitmap和显示的bitmap之间的比例
-     */
-    private float getRealShowRatio()
-    {
-        return mImageRect.height() * 1f / (mSampleSize * mShowBitmapRect.height());
-    }
-
 
     /**
      * 释放所有内存，停止线程
@@ -541,12 +1046,16 @@ public class BitmapManager implements IBitmapManager
     private void recycleAll()
     {
         mBitmapGrid.recycleAllGrids();
+        mCompressedCache.clear();
+        mFrameCache.release();
 
-        synchronized (mBitmapLock) {
+        synchronized (mDecoderLock) {
             if (mDecoder != null) {
                 mDecoder.recycle();
                 mDecoder = null;
             }
+            clearTempSource();
+            releasePreloaded();
 
             mSrcBitmap = null;
         }
@@ -563,28 +1072,22 @@ public class BitmapManager implements IBitmapManager
      */
     private int getCurSampleSize()
     {
-        int iw = mImageRect.width();
-        int ih = mImageRect.height();
-        int bw = (int) mShowBitmapRect.width();
-        int bh = (int) mShowBitmapRect.height();
-        if (bw * bh == 0) {
-            return 1;
-        }
+        return getSampleSize(mShowBitmapRect.width(), mShowBitmapRect.height());
+    }
 
+    /**
+     * 显示为这个尺寸时的 sample size
+     */
+    private int getSampleSize(float showWidth, float showHeight)
+    {
         /**
-         * 以 bitmap 的宽高为标准
-         * 分别以 宽高为标准，计算对应的的宽高
-         * 如果是宽图, 则以View的宽为标准
-         * 否则为高图， 以view的高为标准
-         * 求出 SampleSize
+         * 直接设置的 bitmap 总是按照原图切分, 不需要精确的分辨率
          */
-        int width = (int) (iw * 1.0f / ih * bh);
-        int sampleSize = (width > bw) ? computeSampleSize(iw / bw) : computeSampleSize(ih / bh);
-        if (sampleSize < 1) {
-            sampleSize = 1;
+        if (mIsExactResolution && mSrcBitmap == null) {
+            return GridGeometry.getExactSampleSize(mImageRect.width(), mImageRect.height(), showWidth, showHeight);
         }
 
-        return sampleSize;
+        return GridGeometry.getSampleSize(mImageRect.width(), mImageRect.height(), showWidth, showHeight);
     }
 
     /**
@@ -598,32 +1101,18 @@ public class BitmapManager implements IBitmapManager
     /**
      * 坐标转换, bitmap坐标转换为 view 坐标
      */
-    private Rect toViewCoordinate(Rect rect)
+    private Rect toViewCoordinate(Rect rect, Rect out)
     {
-        if (rect == null) {
-            return new Rect();
-        }
-
-        int left = rect.left - mViewBitmapRect.left;
-        int right = left + rect.width();
-        int top = rect.top - mViewBitmapRect.top;
-        int bottom = top + rect.height();
-
-        return new Rect(left, top, right, bottom);
+        out.set(rect);
+        out.offset(-mViewBitmapRect.left, -mViewBitmapRect.top);
+        return out;
     }
 
-    private RectF toViewCoordinate(RectF rect)
+    private RectF toViewCoordinate(RectF rect, RectF out)
     {
-        if (rect == null) {
-            return new RectF();
-        }
-
-        float left = rect.left - mViewBitmapRect.left;
-        float right = left + rect.width();
-        float top = rect.top - mViewBitmapRect.top;
-        float bottom = top + rect.height();
-
-        return new RectF(left, top, right, bottom);
+        out.set(rect);
+        out.offset(-mViewBitmapRect.left, -mViewBitmapRect.top);
+        return out;
     }
 
     /**
@@ -643,19 +1132,6 @@ public class BitmapManager implements IBitmapManager
         return new Rect(left, top, right, bottom);
     }
 
-    /**
-     * 计算出可见区域的显示出来的bitmap rect, 相对 bitmap 坐标系
-     */
-    private Rect getVisibleShowBitmapRect()
-    {
-        int left = (int) Math.max(mShowBitmapRect.left, mViewBitmapRect.left);
-        int right = (int) Math.min(mShowBitmapRect.right, mViewBitmapRect.right);
-        int top = (int) Math.max(mShowBitmapRect.top, mViewBitmapRect.top);
-        int bottom = (int) Math.min(mShowBitmapRect.bottom, mViewBitmapRect.bottom);
-
-        return new Rect(left, top, right, bottom);
-    }
-
     /**
      * height / width
      */
@@ -673,330 +1149,1303 @@ public class BitmapManager implements IBitmapManager
             return null;
         }
 
-        synchronized (mBitmapLock) {
-            if (mSrcBitmap != null) {
-                return Bitmap.createBitmap(mSrcBitmap, rect.left, rect.top, rect.width(), rect.height());
-            }
-            else if (mDecoder != null) {
-                BitmapFactory.Options tmpOptions = new BitmapFactory.Options();
-                tmpOptions.inPreferredConfig = mBitmapConfig;
-                tmpOptions.inSampleSize = sampleSize;
-                tmpOptions.inJustDecodeBounds = false;
+        /**
+         * 这里不加锁, mDecoder 会给每个解码线程分配一个独立的 decoder
+         */
+        Bitmap srcBitmap = mSrcBitmap;
+        if (srcBitmap != null) {
+            return Bitmap.createBitmap(srcBitmap, rect.left, rect.top, rect.width(), rect.height());
+        }
+
+        IRegionDecoder decoder = openDecoder();
+        if (decoder != null) {
+            int decodeSampleSize = GridGeometry.getDecodeSampleSize(sampleSize);
+            BitmapFactory.Options tmpOptions = new BitmapFactory.Options();
+            tmpOptions.inPreferredConfig = mBitmapConfig;
+            tmpOptions.inSampleSize = decodeSampleSize;
+            tmpOptions.inJustDecodeBounds = false;
+
+            /**
+             * 尽量复用已经回收的 bitmap
+             */
+            int width = Math.max(1, rect.width() / decodeSampleSize);
+            int height = Math.max(1, rect.height() / decodeSampleSize);
+            mBitmapPool.prepareOptions(tmpOptions, width, height);
 
-                return mDecoder.decodeRegion(rect, tmpOptions);
+            Bitmap bitmap = decoder.decodeRegion(rect, tmpOptions);
+            if (bitmap == null && tmpOptions.inBitmap != null) {
+                /**
+                 * 在 KITKAT 之前, inBitmap 的尺寸必须和解码出来的完全一样, 不一样时会失败
+                 */
+                mBitmapPool.put(tmpOptions.inBitmap);
+                tmpOptions.inBitmap = null;
+                bitmap = decoder.decodeRegion(rect, tmpOptions);
             }
+
+            return scaleDecodedBitmap(bitmap, sampleSize);
         }
 
         return null;
     }
 
+    /**
+     * 精确分辨率解码时, 在解码线程中把 2^n 解码出来的 bitmap 缩小到实际的采样率
+     * 缓存中保存的是缩小之后的, 所以内存只和显示的分辨率有关
+     */
+    private Bitmap scaleDecodedBitmap(Bitmap bitmap, int sampleSize)
+    {
+        float scale = GridGeometry.getDecodeScale(sampleSize);
+        if (bitmap == null || scale >= 1f) {
+            return bitmap;
+        }
+
+        int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        Bitmap scaled;
+        try {
+            scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        }
+        catch (OutOfMemoryError e) {
+            return bitmap;
+        }
+
+        if (scaled != bitmap) {
+            recycleBitmap(bitmap);
+        }
+        return scaled;
+    }
+
+    /**
+     * 从磁盘缓存中读取
+     *
+     * @return 没有开启磁盘缓存或者没有缓存时返回 null
+     */
+    private Bitmap getDiskCachedBitmap(Rect rect, int sampleSize)
+    {
+        DiskTileCache diskCache = getDiskCache();
+        if (diskCache == null || rect == null || !mImageRect.contains(rect)) {
+            return null;
+        }
+
+        return diskCache.get(mSourceKey, rect, sampleSize, mBitmapConfig, mBitmapPool);
+    }
+
+    /**
+     * 解码, 并保存到磁盘缓存
+     */
+    private Bitmap decodeAndCacheBitmap(Rect rect, int sampleSize)
+    {
+        String sourceKey = mSourceKey;
+        DiskTileCache diskCache = getDiskCache();
+
+        Bitmap bitmap = decodeRectBitmap(rect, sampleSize);
+        if (diskCache != null && bitmap != null) {
+            diskCache.put(sourceKey, rect, sampleSize, mBitmapConfig, bitmap);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * 被 tile 缓存淘汰的 tile 先在 loading 线程中压缩保存, 再放回复用池
+     * 内存不足时, 或者有更快的来源时 (磁盘缓存, 直接设置的 bitmap) 不压缩
+     * 只在 UI 线程中调用
+     */
+    private void compressAndRecycle(TileCache.Tile tile)
+    {
+        final Bitmap bitmap = tile.mBitmap;
+        final int row = tile.mRow;
+        final int col = tile.mCol;
+        final int sampleSize = tile.mSampleSize;
+        final Handler handler = mLoadingHandler;
+        if (mIsTrimmingMemory || handler == null || bitmap == null || mSrcBitmap != null ||
+                getDiskCache() != null || !mCompressedCache.isEnabled() ||
+                mCompressedCache.contains(row, col, sampleSize)) {
+            recycleBitmap(bitmap);
+            return;
+        }
+
+        final int generation = mCompressedCache.getGeneration();
+        handler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mCompressedCache.put(generation, row, col, sampleSize, bitmap);
+                recycleBitmap(bitmap);
+            }
+        });
+    }
+
+    /**
+     * 将不再使用的 bitmap 放回复用池
+     * 因为 UI 线程可能还在画这个 bitmap, 所以只在 UI 线程中放回
+     */
+    private void recycleBitmap(final Bitmap bitmap)
+    {
+        if (bitmap == null || bitmap == mSrcBitmap) {
+            return;
+        }
+
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            mBitmapPool.put(bitmap);
+        }
+        else {
+            mMainHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    mBitmapPool.put(bitmap);
+                }
+            });
+        }
+    }
+
     /*****************************************************************/
 
     /**
      * 一个 Bitmap 单元， 每一个bitmap 单元都会有个缩略图的bitmap
      * 这个缩略图是在一开始就已经生成的，并一直存在，只有在最后才会被释放
-     * 另外一个 bitmap 就当前需要显示的正常的bitmap，当只需要显示缩略图或者屏幕中不可见时，这个bitmap会被释放掉
+     * 另外的 bitmap 是各个 sample size 解码出来的 tile, 都保存在 mTileCache 中,
+     * 超出缓存预算时, 最久没有画过的 tile 会被淘汰
      * <p/>
      * 如果整个图片就是一个 Bitmap 时，缩略图的bitmap就是正常的 bitmap,
      */
     private class BitmapUnit
     {
         /**
-         * 是否正在加载bitmap
+         * 正在加载的 level (log2(sampleSize)) 的掩码
          */
-        private boolean mIsLoading = false;
+        private long mLoadingLevels = 0;
 
         /**
-         * 当前bitmap 的SampleSize,
-         * 如果此时的SampleSize 和全局的SampleSize不相等，则需要重新decode一次
+         * 各个 sample size 的 tile, 以 level 为下标, 需要时才创建
          */
-        public int mCurSampleSize = 0;
+        private TileCache.Tile[] mTiles = null;
 
         /**
-         * 目前的 mBitmap
+         * 缩略图的bitmap
          */
-        public Bitmap mBitmap = null;
+        public volatile Bitmap mThumbBitmap = null;
 
         /**
-         * 缩略图的bitmap
+         * 缩略图是否已经解码过 (不管是否成功), 需要 synchronized (mThumbLock)
          */
-        public Bitmap mThumbBitmap = null;
+        private boolean mIsThumbDecoded = false;
 
         /**
-         * 这里回收所有的bitmap
+         * 被哪一次预测标记过, 以及预测的 sample size
          */
-        private void recycleAll()
-        {
-            mBitmap = null;
-            mThumbBitmap = null;
-
-            mCurSampleSize = 0;
-        }
+        private int mPredictionId = 0;
+        private int mPredictionSampleSize = 0;
 
         /**
-         * 这里只回收正常的bitmap, 不回收缩略图的bitmap
+         * @return 这个 sample size 的 tile, 没有时返回 null
          */
-        private void recycle()
+        private synchronized TileCache.Tile getTile(int sampleSize)
         {
-            mBitmap = null;
-            mCurSampleSize = mThumbSampleSize;
+            return mTiles == null ? null : mTiles[TileCache.Tile.getLevel(sampleSize)];
         }
-    }
-
-
-    /**
-     * 策略：
-     * 一开始就将原图以 view的尺寸分割为 grid
-     * 在将初始化缩略图等比分割为 n x m, 并保存在单元格里面
-     * 在缩放时候， 如果实际的bitmap改变了， 只需要重新分割，
-     * 然后更新显示区域的 bitmap 单元格
-     * 拖动时不断更新显示区域的 bitmap 单元格
-     */
-    private class BitmapGrid
-    {
-        /**
-         * 总共的单元格数
-         */
-        private int mN = 0;
-        private int mM = 0;
 
         /**
-         * 所有的单元格
+         * 找出最接近这个 sample size 的 tile, 距离相同时优先使用更清晰的
+         *
+         * @param sampleSize 需要的 sample size
+         * @param maxDistance 最多相差几个 level
+         * @return 没有时返回 null
          */
-        private BitmapUnit[][] mGrids = null;
-
-        private void initializeBitmapGrid()
+        private synchronized TileCache.Tile getClosestTile(int sampleSize, int maxDistance)
         {
-            if (mGrids != null) {
-                recycleAllGrids();
+            if (mTiles == null) {
+                return null;
             }
 
-            int vw = mViewRect.width();
-            int vh = mViewRect.height();
+            int level = TileCache.Tile.getLevel(sampleSize);
+            for (int d = 0; d <= maxDistance; ++d) {
+                int finer = level - d;
+                if (finer >= 0 && mTiles[finer] != null) {
+                    return mTiles[finer];
+                }
 
-            int iw = mImageRect.width();
-            int ih = mImageRect.height();
+                int coarser = level + d;
+                if (coarser < mTiles.length && mTiles[coarser] != null) {
+                    return mTiles[coarser];
+                }
+            }
 
-            mN = ih / vh + (ih % vh == 0 ? 0 : 1);
-            mM = iw / vw + (iw % vw == 0 ? 0 : 1);
+            return null;
+        }
 
-            mGrids = new BitmapUnit[mN][mM];
-            for (int i = 0; i < mN; ++i) {
-                for (int j = 0; j < mM; ++j) {
-                    mGrids[i][j] = new BitmapUnit();
-                    mGrids[i][j].mCurSampleSize = mSampleSize;
-                }
+        /**
+         * 保存新解码出来的 tile, 同一个 sample size 原来的 tile 会被移除
+         */
+        private synchronized void setTile(TileCache.Tile tile)
+        {
+            if (mTiles == null) {
+                mTiles = new TileCache.Tile[TileCache.MAX_LEVEL];
             }
 
-            /**
-             * 异步加载缩略图
-             */
-            if (mLoadingThread.isAlive()) {
-                mLoadingHandler.post(mDecodeThumbRunnable);
+            int level = tile.getLevel();
+            TileCache.Tile old = mTiles[level];
+            if (old != null) {
+                mTileCache.remove(old);
+                recycleBitmap(old.mBitmap);
             }
+            mTiles[level] = tile;
+            mTileCache.put(tile);
         }
 
-        public Runnable mDecodeThumbRunnable = new Runnable()
+        /**
+         * tile 被缓存淘汰了, 如果还是这个单元格的 tile 就放回复用池
+         * 谁把 tile 从 mTiles 中移除, 谁就负责回收它的 bitmap, 保证不会被重复回收
+         */
+        private synchronized void onTileEvicted(TileCache.Tile tile)
         {
-            @Override
-            public void run()
-            {
-                long before = System.currentTimeMillis();
-                decodeThumbUnitBitmap();
-                if (DEBUG) {
-                    Log.e(TAG, "Decode Spend Time: " + (System.currentTimeMillis() - before));
-                }
-                /**
-                 * 设置完成
-                 */
-                onSetImageFinished(true);
+            int level = tile.getLevel();
+            if (mTiles != null && mTiles[level] == tile) {
+                mTiles[level] = null;
+                compressAndRecycle(tile);
             }
-        };
+        }
 
         /**
-         * 获取bitmap
+         * 标记这个 sample size 正在加载
+         *
+         * @return 如果已经有这个 tile 或者已经在加载了, 返回 false
          */
-        private Bitmap getGridBitmap(final int n, final int m)
+        private synchronized boolean markLoading(int sampleSize)
         {
-            if (isValidGrid(n, m)) {
-                BitmapUnit unit = mGrids[n][m];
-                if (mSrcBitmap != null) {
-                    return unit.mThumbBitmap;
-                }
-
-                if (mSampleSize == mThumbSampleSize) {
-                    return unit.mThumbBitmap;
-                }
-
-                if (unit.mCurSampleSize != mSampleSize) {
-                    loadUnitBitmap(n, m);
-                }
-
-                return (unit.mBitmap != null && !unit.mBitmap.isRecycled()) ? unit.mBitmap : unit.mThumbBitmap;
+            long bit = 1L << TileCache.Tile.getLevel(sampleSize);
+            if ((mLoadingLevels & bit) != 0 || getTile(sampleSize) != null) {
+                return false;
             }
+            mLoadingLevels |= bit;
+            return true;
+        }
 
-            return null;
+        private synchronized void clearLoading(int sampleSize)
+        {
+            mLoadingLevels &= ~(1L << TileCache.Tile.getLevel(sampleSize));
         }
 
         /**
-         * 异步就加载单元格bitmap
+         * 标记这个单元格在这一次预测中需要
+         *
+         * @return 如果这一次预测已经标记过, 返回 false
          */
-        private void loadUnitBitmap(final int n, final int m)
+        private synchronized boolean markPredicted(int predictionId, int sampleSize)
         {
-            if (mSampleSize != mThumbSampleSize && isValidGrid(n, m)) {
-                BitmapUnit unit = mGrids[n][m];
-                if (unit.mIsLoading) {
-                    return;
-                }
-                unit.mIsLoading = true;
+            if (mPredictionId == predictionId && mPredictionSampleSize == sampleSize) {
+                return false;
+            }
+            mPredictionId = predictionId;
+            mPredictionSampleSize = sampleSize;
+            return true;
+        }
 
-                mLoadingHandler.post(new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        if (isValidGrid(n, m)) {
-                            decodeVisibleUnitBitmap(n, m);
-                            mGrids[n][m].mIsLoading = false;
-                            if (mGrids[n][m].mCurSampleSize != mSampleSize) {
-                                return;
-                            }
-                            mXImageView.callPostInvalidate();
-                        }
+        private synchronized boolean isPredicted(int predictionId, int sampleSize)
+        {
+            return mPredictionId == predictionId && mPredictionSampleSize == sampleSize;
+        }
+
+        /**
+         * 这里回收所有的bitmap, 放回复用池
+         */
+        private synchronized void recycleAll()
+        {
+            if (mTiles != null) {
+                for (int i = 0; i < mTiles.length; ++i) {
+                    if (mTiles[i] != null) {
+                        mTileCache.remove(mTiles[i]);
+                        recycleBitmap(mTiles[i].mBitmap);
+                        mTiles[i] = null;
                     }
-                });
+                }
             }
+
+            recycleBitmap(mThumbBitmap);
+            mThumbBitmap = null;
         }
+    }
 
+
+    /**
+     * 策略：
+     * 一开始就将原图以 view的尺寸分割为 grid
+     * 在将初始化缩略图等比分割为 n x m, 并保存在单元格里面
+     * 在缩放时候， 如果实际的bitmap改变了， 只需要重新分割，
+     * 然后更新显示区域的 bitmap 单元格
+     * 拖动时不断更新显示区域的 bitmap 单元格
+     */
+    private class BitmapGrid implements TileScheduler.Callback, TileCache.OnEvictedListener
+    {
         /**
-         * 回收所有的单元格
+         * 可见区域外预加载的单元格圈数
          */
-        private void recycleAllGrids()
+        private final static int PREFETCH_MARGIN = 1;
+
+        /**
+         * 预加载的单元格的优先级基数, 保证排在所有可见单元格之后
+         */
+        private final static int PREFETCH_PRIORITY = 1 << 20;
+
+        /**
+         * 惯性滑动路径上的单元格的优先级基数, 排在可见单元格之后, 预加载的一圈之前
+         */
+        private final static int FLING_PRIORITY = 1 << 16;
+
+        /**
+         * 缩放动画目标区域的单元格的优先级基数, 排在所有请求之前
+         */
+        private final static int SCALE_TARGET_PRIORITY = -PREFETCH_PRIORITY;
+
+        /**
+         * 初始缩略图的优先级基数, 排在缩放动画的目标区域之前, 没有缩略图时什么都画不出来
+         */
+        private final static int THUMB_PRIORITY = 4 * SCALE_TARGET_PRIORITY;
+
+        /**
+         * 惯性滑动路径最多分成多少段
+         */
+        private final static int MAX_FLING_STEPS = 256;
+
+        /**
+         * 这一帧中 tile 缓存命中和没有命中的单元格数, 只在 UI 线程中使用
+         */
+        private int mFrameHits = 0;
+        private int mFrameMisses = 0;
+
+        /**
+         * 当前的预测 (比如惯性滑动的路径), 被这次预测标记过的单元格的请求不受可见区域变化的影响,
+         * 每一次新的预测都会让之前的预测失效
+         */
+        private volatile int mPredictionId = 0;
+
+        /**
+         * 总共的单元格数
+         */
+        private int mN = 0;
+        private int mM = 0;
+
+        /**
+         * 单元格的几何计算
+         */
+        private final GridGeometry mGeometry = new GridGeometry();
+
+        /**
+         * 画图时复用的临时对象, 只在 UI 线程中使用
+         */
+        private final int[] mTmpBounds = new int[4];
+        private final Rect mVisibleGrid = new Rect();
+        private final Rect mClipRect = new Rect();
+        private final Rect mShowUnitRect = new Rect();
+        private final Rect mDrawRect = new Rect();
+
+        /**
+         * 所有的单元格
+         */
+        private BitmapUnit[][] mGrids = null;
+
+        /**
+         * 最近一次调度时的可见单元格和 sample size
+         * 解码线程会读取这两个值来判断请求是否过时, 需要 synchronized (mScheduledGrid)
+         */
+        private final Rect mScheduledGrid = new Rect();
+        private int mScheduledSampleSize = 0;
+
+        /**
+         * 还没有解码完成的缩略图数, 为 0 时不再接受缩略图的请求
+         * 以及是否已经显示出来 (onSetImageFinished())
+         */
+        private final Object mThumbLock = new Object();
+        private int mThumbPending = 0;
+        private boolean mIsThumbPublished = false;
+        private long mThumbStartTime = 0;
+
+        private void initializeBitmapGrid()
         {
+            cancelThumbs();
+            mFrameCache.invalidate();
+            if (mGrids != null) {
+                recycleAllGrids();
+            }
+
+            synchronized (mScheduledGrid) {
+                mScheduledGrid.setEmpty();
+                mScheduledSampleSize = 0;
+            }
+            mPredictionId += 1;
+            if (mTileScheduler != null) {
+                mTileScheduler.cancelAll();
+            }
+
+            mGeometry.setImage(mImageRect.width(), mImageRect.height(), mTileSize);
+            mN = mGeometry.getRows();
+            mM = mGeometry.getCols();
+
+            BitmapUnit[][] grids = new BitmapUnit[mN][mM];
             for (int i = 0; i < mN; ++i) {
                 for (int j = 0; j < mM; ++j) {
-                    mGrids[i][j].recycleAll();
+                    grids[i][j] = new BitmapUnit();
                 }
             }
+            synchronized (mThumbLock) {
+                mGrids = grids;
+            }
+
+            /**
+             * 有预加载的缩略图时直接使用, 不用再解码
+             */
+            if (attachPreloadedThumbs()) {
+                onSetImageFinished(true);
+                return;
+            }
+
+            /**
+             * 在解码线程中并行加载缩略图
+             */
+            submitThumbs();
         }
 
         /**
-         * 判断是否为有效的单元格
+         * 不再接受还在排队或者正在解码的缩略图, 之后被丢弃的请求不会重新提交
          */
-        private boolean isValidGrid(int n, int m)
+        private void cancelThumbs()
         {
-            return n >= 0 && n < mN && m >= 0 && m < mM;
+            synchronized (mThumbLock) {
+                mThumbPending = 0;
+                mIsThumbPublished = true;
+            }
         }
 
         /**
-         * 得出原图的单元格
+         * 开始解码缩略图, 按照 ThumbType 一次解码整张图片, 或者每一个单元格单独解码
          */
-        private Rect getUnitRect(int n, int m)
+        private void submitThumbs()
         {
-            if (n < 0 || n >= mN || m < 0 || m >= mM) {
-                return null;
+            int total = mN * mM;
+            if (mTileScheduler == null || total == 0) {
+                onSetImageFinished(true);
+                return;
+            }
+
+            synchronized (mThumbLock) {
+                mThumbPending = total;
+                mIsThumbPublished = false;
+                mThumbStartTime = System.currentTimeMillis();
+            }
+
+            if (isSinglePassThumb() && mLoadingHandler != null) {
+                mLoadingHandler.post(mDecodeSinglePassRunnable);
+            }
+            else {
+                submitCellThumbs();
+            }
+        }
+
+        /**
+         * 是否一次解码整张图片作为缩略图
+         */
+        private boolean isSinglePassThumb()
+        {
+            if (mSrcBitmap != null || mN * mM <= 1) {
+                return false;
+            }
+
+            IXImageView.ThumbType type = mXImageView.getThumbType();
+            type = type == null ? IXImageView.ThumbType.AUTO : type;
+            switch (type) {
+                case PER_CELL:
+                    return false;
+
+                case SINGLE_PASS:
+                    return true;
+
+                default:
+                    return getDiskCache() == null && GridGeometry.isSinglePassThumbSize(mThumbSampleSize);
+            }
+        }
+
+        /**
+         * 把每一个单元格的缩略图作为一个请求提交给解码线程, 从初始可见区域的中心向外,
+         * 每解码完成一个就画出来, 第一个完成时就算设置完成
+         */
+        private void submitCellThumbs()
+        {
+            /**
+             * 不在 UI 线程中, 不能使用 getVisibleGrid() 复用的对象
+             */
+            int[] visible = new int[4];
+            mGeometry.getVisibleGrid(mShowBitmapRect.width(), mShowBitmapRect.height(),
+                    mViewBitmapRect.left, mViewBitmapRect.top, mViewBitmapRect.right, mViewBitmapRect.bottom,
+                    GridGeometry.getDecodeSampleSize(mThumbSampleSize), visible);
+            int sm = visible[GridGeometry.LEFT];
+            int sn = visible[GridGeometry.TOP];
+            int em = visible[GridGeometry.RIGHT];
+            int en = visible[GridGeometry.BOTTOM];
+            int sampleSize = mThumbSampleSize;
+
+            for (int n = 0; n < mN; ++n) {
+                for (int m = 0; m < mM; ++m) {
+                    int dx = 2 * m + 1 - (sm + em + 1);
+                    int dy = 2 * n + 1 - (sn + en + 1);
+                    int priority = THUMB_PRIORITY + dx * dx + dy * dy;
+                    if (n < sn || n > en || m < sm || m > em) {
+                        priority += PREFETCH_PRIORITY;
+                    }
+                    mTileScheduler.submit(n, m, sampleSize, priority, true);
+                }
+            }
+        }
+
+        /**
+         * 在解码线程中解码一个单元格的缩略图
+         * 网格已经重新初始化或者缩略图的 sample size 已经改变时直接丢弃
+         */
+        private void decodeThumb(TileScheduler.Request request)
+        {
+            int n = request.mRow;
+            int m = request.mCol;
+            BitmapUnit[][] grids = mGrids;
+            if (grids == null || !isValidGrid(n, m) || !isThumbRequestValid(request)) {
+                return;
+            }
+
+            long start = System.nanoTime();
+            Rect rect = getUnitRect(n, m);
+            IXImageView.TileSource source = IXImageView.TileSource.DISK_CACHE;
+            Bitmap bitmap = rect == null ? null : getDiskCachedBitmap(rect, request.mSampleSize);
+            if (bitmap == null && rect != null) {
+                source = IXImageView.TileSource.DECODER;
+                bitmap = decodeAndCacheBitmap(rect, request.mSampleSize);
+            }
+
+            boolean publish;
+            boolean finished;
+            synchronized (mThumbLock) {
+                BitmapUnit unit = grids[n][m];
+                if (grids != mGrids || unit.mIsThumbDecoded || !isThumbRequestValid(request)) {
+                    recycleBitmap(bitmap);
+                    return;
+                }
+
+                unit.mThumbBitmap = bitmap;
+                unit.mIsThumbDecoded = true;
+                mThumbPending -= 1;
+                finished = mThumbPending == 0;
+                publish = !mIsThumbPublished;
+                mIsThumbPublished = true;
+            }
+
+            XImageView.OnMetricsListener listener = mXImageView.getMetricsListener();
+            if (listener != null && bitmap != null) {
+                listener.onTileDecoded(mXImageView.getInstance(), GridGeometry.getDecodeSampleSize(request.mSampleSize),
+                        start - request.mSubmitTime, System.nanoTime() - start, source);
+            }
+
+            if (finished && DEBUG) {
+                Log.e(TAG, "Decode Spend Time: " + (System.currentTimeMillis() - mThumbStartTime));
+            }
+
+            /**
+             * 设置完成
+             */
+            if (publish) {
+                onSetImageFinished(true);
             }
+            else {
+                invalidateUnit(n, m, true);
+            }
+        }
+
+        /**
+         * 以缩略图的 sample size 把整张图片解码一次, 再切成每一个单元格的缩略图
+         * 失败时 (比如内存不足) 改为每一个单元格单独解码
+         */
+        private Runnable mDecodeSinglePassRunnable = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                BitmapUnit[][] grids;
+                int sampleSize;
+                synchronized (mThumbLock) {
+                    if (mThumbPending == 0) {
+                        return;
+                    }
+                    grids = mGrids;
+                    sampleSize = mThumbSampleSize;
+                }
+
+                Bitmap whole = null;
+                try {
+                    whole = decodeRectBitmap(new Rect(mImageRect), sampleSize);
+                }
+                catch (OutOfMemoryError e) {
+                    e.printStackTrace();
+                }
+
+                Bitmap[][] thumbs = whole == null ? null : sliceThumbs(whole);
+                if (whole != null) {
+                    recycleBitmap(whole);
+                }
+
+                if (thumbs == null) {
+                    submitCellThumbs();
+                    return;
+                }
+
+                synchronized (mThumbLock) {
+                    if (grids != mGrids || mThumbPending == 0 || sampleSize != mThumbSampleSize) {
+                        for (Bitmap[] row : thumbs) {
+                            for (Bitmap thumb : row) {
+                                recycleBitmap(thumb);
+                            }
+                        }
+                        return;
+                    }
+
+                    for (int n = 0; n < mN; ++n) {
+                        for (int m = 0; m < mM; ++m) {
+                            grids[n][m].mThumbBitmap = thumbs[n][m];
+                            grids[n][m].mIsThumbDecoded = true;
+                        }
+                    }
+                    mThumbPending = 0;
+                    mIsThumbPublished = true;
+                    mFrameCache.invalidate();
+                }
+
+                if (DEBUG) {
+                    Log.e(TAG, "Decode Spend Time: " + (System.currentTimeMillis() - mThumbStartTime));
+                }
 
-            int vw = mViewRect.width();
-            int vh = mViewRect.height();
+                /**
+                 * 设置完成
+                 */
+                onSetImageFinished(true);
+            }
+        };
 
+        /**
+         * 把整张图片的缩略图按照单元格在原图中的比例切开
+         *
+         * @return 内存不足时返回 null
+         */
+        private Bitmap[][] sliceThumbs(Bitmap whole)
+        {
             int iw = mImageRect.width();
             int ih = mImageRect.height();
+            int bw = whole.getWidth();
+            int bh = whole.getHeight();
 
-            int left = Math.min(iw, m * vw);
-            int right = Math.min(iw, left + vw);
-
-            int top = Math.min(ih, n * vh);
-            int bottom = Math.min(ih, top + vh);
+            Bitmap[][] thumbs = new Bitmap[mN][mM];
+            int[] bounds = new int[4];
+            try {
+                for (int n = 0; n < mN; ++n) {
+                    for (int m = 0; m < mM; ++m) {
+                        if (!mGeometry.getUnitRect(n, m, bounds)) {
+                            continue;
+                        }
 
-            if (left == right || top == bottom) {
+                        int left = Math.min(bw - 1, (int) ((long) bounds[GridGeometry.LEFT] * bw / iw));
+                        int top = Math.min(bh - 1, (int) ((long) bounds[GridGeometry.TOP] * bh / ih));
+                        int right = Math.max(left + 1, (int) ((long) bounds[GridGeometry.RIGHT] * bw / iw));
+                        int bottom = Math.max(top + 1, (int) ((long) bounds[GridGeometry.BOTTOM] * bh / ih));
+                        thumbs[n][m] = Bitmap.createBitmap(whole, left, top,
+                                Math.min(bw, right) - left, Math.min(bh, bottom) - top);
+                    }
+                }
+            }
+            catch (OutOfMemoryError e) {
+                e.printStackTrace();
+                for (Bitmap[] row : thumbs) {
+                    for (Bitmap thumb : row) {
+                        if (thumb != null) {
+                            thumb.recycle();
+                        }
+                    }
+                }
                 return null;
             }
 
-            return new Rect(left, top, right, bottom);
+            return thumbs;
+        }
+
+        private boolean isThumbRequestValid(TileScheduler.Request request)
+        {
+            synchronized (mThumbLock) {
+                return mThumbPending > 0 && request.mSampleSize == mThumbSampleSize;
+            }
         }
 
         /**
-         * 获取显示的单元格rect
+         * 使用预加载的缩略图, 只有网格和缩略图的 sample size 都和预加载时一样才能使用,
+         * 预加载的结果只使用一次
          */
-        private Rect getShowBitmapUnit(int n, int m)
+        private boolean attachPreloadedThumbs()
         {
-            RectF vRect = rectMulti(mViewRect, getShowImageRatio());
+            Bitmap[][] thumbs;
+            synchronized (mDecoderLock) {
+                if (mPreloaded == null) {
+                    return false;
+                }
+                thumbs = mPreloaded.takeThumbs(mN, mM, mThumbSampleSize);
+                releasePreloaded();
+            }
 
-            float vw = vRect.width();
-            float vh = vRect.height();
+            if (thumbs == null) {
+                return false;
+            }
 
-            float sWidth = mShowBitmapRect.width();
-            float sHeight = mShowBitmapRect.height();
+            for (int n = 0; n < mN; ++n) {
+                for (int m = 0; m < mM; ++m) {
+                    mGrids[n][m].mThumbBitmap = thumbs[n][m];
+                }
+            }
 
-            float left = Math.min(m * vw, sWidth);
-            float right = Math.min(left + vw, sWidth);
+            return true;
+        }
 
-            float top = Math.min(n * vh, sHeight);
-            float bottom = Math.min(top + vh, sHeight);
+        /**
+         * 获取bitmap
+         * 如果当前 sample size 的 tile 还没有解码出来, 就使用缓存中最接近的其他 sample size 的 tile,
+         * 更清晰或者更模糊都可以, 只要比缩略图更接近, 这样缩放之后不会突然变成缩略图
+         */
+        private Bitmap getGridBitmap(final int n, final int m)
+        {
+            if (isValidGrid(n, m)) {
+                BitmapUnit unit = mGrids[n][m];
+                if (mSrcBitmap != null || mSampleSize == mThumbSampleSize) {
+                    countFrameCache(unit.mThumbBitmap != null);
+                    return unit.mThumbBitmap;
+                }
+
+                /**
+                 * 缩略图也是一个 level, 比缩略图离得更远的 tile 就没有意义了
+                 */
+                int level = TileCache.Tile.getLevel(mSampleSize);
+                int thumbDistance = Math.abs(TileCache.Tile.getLevel(mThumbSampleSize) - level);
+                int maxDistance = unit.mThumbBitmap == null ? TileCache.MAX_LEVEL : thumbDistance;
+
+                TileCache.Tile tile = unit.getClosestTile(mSampleSize, maxDistance);
+                if (tile != null && tile.mBitmap != null) {
+                    mTileCache.touch(tile);
+                    countFrameCache(tile.getLevel() == level);
+                    return tile.mBitmap;
+                }
+
+                countFrameCache(false);
+                return unit.mThumbBitmap;
+            }
 
-            return new Rect((int) left, (int) top, (int) right, (int) bottom);
+            return null;
         }
 
         /**
-         * 判断是否是可见的单元格
+         * 把缩略图缩小一半, 缩略图的 sample size 加倍,
+         * 初始大小显示时会因为 sample size 不一样而解码当前 sample size 的 tile, 所以可见区域不会变模糊
+         * 只在 UI 线程中调用
+         *
+         * @return 释放的字节数
          */
-        private boolean isVisibleUnit(int n, int m)
+        private long downsampleThumbs()
         {
-            Rect v = getVisibleGrid();
+            if (mIsSettingImage || mGrids == null || mSrcBitmap != null ||
+                    mThumbSampleSize <= 0 ||
+                    GridGeometry.getDecodeSampleSize(mThumbSampleSize) >= MAX_THUMB_SAMPLE_SIZE) {
+                return 0;
+            }
+
+            /**
+             * 缩略图还没有全部解码完成
+             */
+            synchronized (mThumbLock) {
+                if (mThumbPending > 0) {
+                    return 0;
+                }
+            }
 
-            return n >= v.top && n <= v.bottom && m >= v.left && m <= v.right;
+            long bytes = 0;
+            for (int n = 0; n < mN; ++n) {
+                for (int m = 0; m < mM; ++m) {
+                    BitmapUnit unit = mGrids[n][m];
+                    Bitmap thumb = unit.mThumbBitmap;
+                    if (thumb == null || thumb.isRecycled()) {
+                        continue;
+                    }
+
+                    int width = Math.max(1, thumb.getWidth() / 2);
+                    int height = Math.max(1, thumb.getHeight() / 2);
+                    Bitmap scaled;
+                    try {
+                        scaled = Bitmap.createScaledBitmap(thumb, width, height, true);
+                    }
+                    catch (OutOfMemoryError e) {
+                        /**
+                         * 连缩小的内存都没有了, 直接丢掉
+                         */
+                        scaled = null;
+                    }
+
+                    unit.mThumbBitmap = scaled;
+                    bytes += thumb.getByteCount() - (scaled == null ? 0 : scaled.getByteCount());
+                    recycleBitmap(thumb);
+                }
+            }
+
+            mThumbSampleSize = GridGeometry.doubleSampleSize(mThumbSampleSize);
+            return bytes;
+        }
+
+        private void countFrameCache(boolean hit)
+        {
+            if (hit) {
+                mFrameHits++;
+            }
+            else {
+                mFrameMisses++;
+            }
         }
 
         /**
-         * 回收不可见区域的bitmap
+         * 当可见的单元格或者 sample size 改变时, 取消所有还在排队的请求, 按照新的优先级重新提交:
+         * 可见的单元格优先, 并且从可见区域的中心向外, 然后是可见区域外一圈的预加载单元格
+         */
+        private void scheduleUnits(Rect visible)
+        {
+            if (mTileScheduler == null) {
+                return;
+            }
+
+            synchronized (mScheduledGrid) {
+                if (mScheduledGrid.equals(visible) && mScheduledSampleSize == mSampleSize) {
+                    return;
+                }
+                mScheduledGrid.set(visible);
+                mScheduledSampleSize = mSampleSize;
+            }
+
+            /**
+             * 被取消的请求在 onDropped() 中如果还需要, 会以新的优先级重新提交
+             */
+            mTileScheduler.cancelAll();
+
+            for (int n = visible.top - PREFETCH_MARGIN; n <= visible.bottom + PREFETCH_MARGIN; ++n) {
+                for (int m = visible.left - PREFETCH_MARGIN; m <= visible.right + PREFETCH_MARGIN; ++m) {
+                    scheduleUnitIfNeeded(n, m);
+                }
+            }
+        }
+
+        /**
+         * 如果这个单元格需要解码, 就提交一个请求
+         */
+        private void scheduleUnitIfNeeded(int n, int m)
+        {
+            if (mSrcBitmap != null || mSampleSize == mThumbSampleSize || !isValidGrid(n, m)) {
+                return;
+            }
+
+            int sampleSize;
+            int priority;
+            synchronized (mScheduledGrid) {
+                sampleSize = mScheduledSampleSize;
+                if (sampleSize != mSampleSize || !isScheduledUnit(n, m)) {
+                    return;
+                }
+
+                /**
+                 * 到可见区域中心的距离 (以半个单元格为单位)
+                 */
+                int dx = 2 * m + 1 - (mScheduledGrid.left + mScheduledGrid.right + 1);
+                int dy = 2 * n + 1 - (mScheduledGrid.top + mScheduledGrid.bottom + 1);
+                priority = dx * dx + dy * dy;
+
+                /**
+                 * 可见单元格的范围是 [left, right] x [top, bottom]
+                 */
+                if (n < mScheduledGrid.top || n > mScheduledGrid.bottom ||
+                        m < mScheduledGrid.left || m > mScheduledGrid.right) {
+                    priority += PREFETCH_PRIORITY;
+                }
+            }
+
+            if (mGrids[n][m].markLoading(sampleSize)) {
+                mTileScheduler.submit(n, m, sampleSize, priority);
+            }
+        }
+
+        /**
+         * 是否在最近一次调度的范围内 (包括预加载的一圈)
+         */
+        private boolean isScheduledUnit(int n, int m)
+        {
+            return n >= mScheduledGrid.top - PREFETCH_MARGIN && n <= mScheduledGrid.bottom + PREFETCH_MARGIN &&
+                    m >= mScheduledGrid.left - PREFETCH_MARGIN && m <= mScheduledGrid.right + PREFETCH_MARGIN;
+        }
+
+        @Override
+        public boolean isRequestValid(TileScheduler.Request request)
+        {
+            if (request.mIsThumb) {
+                return isThumbRequestValid(request);
+            }
+
+            if (isPredictedRequest(request)) {
+                return true;
+            }
+
+            synchronized (mScheduledGrid) {
+                return request.mSampleSize == mSampleSize &&
+                        request.mSampleSize == mScheduledSampleSize &&
+                        isScheduledUnit(request.mRow, request.mCol);
+            }
+        }
+
+        /**
+         * 是否是当前预测中的请求
+         */
+        private boolean isPredictedRequest(TileScheduler.Request request)
+        {
+            BitmapUnit[][] grids = mGrids;
+            int n = request.mRow;
+            int m = request.mCol;
+            return grids != null && isValidGrid(n, m) &&
+                    grids[n][m].isPredicted(mPredictionId, request.mSampleSize);
+        }
+
+        /**
+         * 让之前的预测失效, 还在排队的请求会在下一次调度时被丢弃
+         */
+        private void cancelPrediction()
+        {
+            mPredictionId += 1;
+        }
+
+        /**
+         * 预加载惯性滑动路径上的单元格
+         * 将路径分成很多段, 按照先后顺序计算每一段的可见单元格,
+         * 越早进入可见区域的单元格优先级越高
          *
-         * @param visible 可见区域
+         * @param dx 总共会滑动的距离, 和 move() 的方向一样
+         * @param dy 总共会滑动的距离, 和 move() 的方向一样
          */
-        private void recycleInvisibleGrids(Rect visible)
+        private void prefetchFling(int dx, int dy)
         {
-            if (mGrids == null) {
+            cancelPrediction();
+            if (mTileScheduler == null || mGrids == null || mSrcBitmap != null || mSampleSize == mThumbSampleSize) {
                 return;
             }
 
-            int sn = visible.top;
-            int sm = visible.left;
-            int en = visible.bottom;
-            int em = visible.right;
+            float showWidth = mShowBitmapRect.width();
+            float showHeight = mShowBitmapRect.height();
+            int viewWidth = mViewBitmapRect.width();
+            int viewHeight = mViewBitmapRect.height();
 
             /**
-             * 如果上一次有不可见的，并距离可见区域 > 1 的，就释放掉
-             * +--+--+--+--+--+
-             * |XX|XX|11|11|XX|
-             * +--+--+--+--+--+
-             * |XX|XX|11|11|XX|
-             * +--+--+--+--+--+
-             * |XX|XX|XX|XX|XX|
-             * +--+--+--+--+--+
-             * XX 部分就是可以被释放掉的区域
+             * 滑动结束时 view 在显示的 bitmap 上的位置, 和 move() 一样不能超出边界
              */
-            int mn = 1;
+            int startX = mViewBitmapRect.left;
+            int startY = mViewBitmapRect.top;
+            int endX = viewWidth < showWidth ? (int) Math.max(0, Math.min(showWidth - viewWidth, startX - dx)) : startX;
+            int endY = viewHeight < showHeight ? (int) Math.max(0, Math.min(showHeight - viewHeight, startY - dy)) : startY;
+
+            /**
+             * 每一段大约半个单元格
+             */
+            float step = Math.max(1f, mTileSize * showHeight / mImageRect.height() / 2);
+            double distance = Math.hypot(endX - startX, endY - startY);
+            int steps = (int) Math.min(MAX_FLING_STEPS, Math.ceil(distance / step));
+
+            int predictionId = mPredictionId;
+            int sampleSize = mSampleSize;
+            int[] visible = new int[4];
+            for (int i = 1; i <= steps; ++i) {
+                int left = startX + (endX - startX) * i / steps;
+                int top = startY + (endY - startY) * i / steps;
+                mGeometry.getVisibleGrid(showWidth, showHeight, left, top, left + viewWidth, top + viewHeight,
+                        GridGeometry.getDecodeSampleSize(sampleSize), visible);
+
+                for (int n = visible[GridGeometry.TOP]; n <= visible[GridGeometry.BOTTOM]; ++n) {
+                    for (int m = visible[GridGeometry.LEFT]; m <= visible[GridGeometry.RIGHT]; ++m) {
+                        submitPredicted(n, m, sampleSize, predictionId, FLING_PRIORITY + i);
+                    }
+                }
+            }
+        }
+
+        /**
+         * 预加载缩放动画结束时可见的单元格, 从中心向外
+         *
+         * @param showWidth 缩放之后显示的 bitmap 的宽
+         * @param showHeight 缩放之后显示的 bitmap 的高
+         * @param viewRect 缩放之后 view 在显示的 bitmap 上的区域
+         * @param sampleSize 缩放之后的 sample size
+         */
+        private void prefetchScaleTarget(float showWidth, float showHeight, Rect viewRect, int sampleSize)
+        {
+            cancelPrediction();
+            if (mTileScheduler == null || mGrids == null || mSrcBitmap != null || sampleSize == mThumbSampleSize) {
+                return;
+            }
+
+            int[] visible = new int[4];
+            mGeometry.getVisibleGrid(showWidth, showHeight,
+                    viewRect.left, viewRect.top, viewRect.right, viewRect.bottom,
+                    GridGeometry.getDecodeSampleSize(sampleSize), visible);
+
+            int predictionId = mPredictionId;
+            int sm = visible[GridGeometry.LEFT];
+            int sn = visible[GridGeometry.TOP];
+            int em = visible[GridGeometry.RIGHT];
+            int en = visible[GridGeometry.BOTTOM];
+            for (int n = sn; n <= en; ++n) {
+                for (int m = sm; m <= em; ++m) {
+                    int dx = 2 * m + 1 - (sm + em + 1);
+                    int dy = 2 * n + 1 - (sn + en + 1);
+                    submitPredicted(n, m, sampleSize, predictionId, SCALE_TARGET_PRIORITY + dx * dx + dy * dy);
+                }
+            }
+        }
+
+        /**
+         * 提交一个预测的请求, 同一次预测中每个单元格只提交一次
+         */
+        private void submitPredicted(int n, int m, int sampleSize, int predictionId, int priority)
+        {
+            if (!isValidGrid(n, m)) {
+                return;
+            }
+
+            BitmapUnit unit = mGrids[n][m];
+            if (unit.markPredicted(predictionId, sampleSize) && unit.markLoading(sampleSize)) {
+                mTileScheduler.submit(n, m, sampleSize, priority);
+            }
+        }
+
+        @Override
+        public void onExecute(TileScheduler.Request request)
+        {
+            if (request.mIsThumb) {
+                decodeThumb(request);
+                return;
+            }
+
+            int n = request.mRow;
+            int m = request.mCol;
+            BitmapUnit[][] grids = mGrids;
+            if (grids == null || !isValidGrid(n, m)) {
+                return;
+            }
+
+            BitmapUnit unit = grids[n][m];
+            long start = System.nanoTime();
+            IXImageView.TileSource source = decodeUnitBitmap(unit, n, m, request.mSampleSize);
+            unit.clearLoading(request.mSampleSize);
+
+            XImageView.OnMetricsListener listener = mXImageView.getMetricsListener();
+            if (listener != null && source != null) {
+                listener.onTileDecoded(mXImageView.getInstance(), GridGeometry.getDecodeSampleSize(request.mSampleSize),
+                        start - request.mSubmitTime, System.nanoTime() - start, source);
+            }
+
+            /**
+             * 其他 sample size 的 tile 也可能被用来代替当前的, 帧缓存中也要重新画
+             */
+            if (source != null) {
+                invalidateUnit(n, m, request.mSampleSize == mSampleSize);
+            }
+        }
+
+        /**
+         * 只重新画一个单元格的区域, 在解码线程中调用
+         * 和 UI 线程之间没有同步, 这时 view 的位置也可能已经改变, 但是改变位置时会全部重新画
+         *
+         * @param post 是否需要 postInvalidate, 否则只标记帧缓存
+         */
+        private void invalidateUnit(int n, int m, boolean post)
+        {
+            int[] bounds = new int[4];
+            mGeometry.getShowUnitRect(n, m, mShowBitmapRect.width(), mShowBitmapRect.height(), bounds);
+            int left = bounds[GridGeometry.LEFT];
+            int top = bounds[GridGeometry.TOP];
+            int right = bounds[GridGeometry.RIGHT];
+            int bottom = bounds[GridGeometry.BOTTOM];
+            mFrameCache.invalidate(left, top, right, bottom);
+
+            if (!post) {
+                return;
+            }
+
+            int ox = mViewBitmapRect.left;
+            int oy = mViewBitmapRect.top;
+            left = Math.max(0, left - ox);
+            top = Math.max(0, top - oy);
+            right = Math.min(mViewRect.width(), right - ox);
+            bottom = Math.min(mViewRect.height(), bottom - oy);
+            if (left < right && top < bottom) {
+                mXImageView.callPostInvalidate(left, top, right, bottom);
+            }
+        }
+
+        @Override
+        public void onDropped(TileScheduler.Request request)
+        {
+            int n = request.mRow;
+            int m = request.mCol;
+            BitmapUnit[][] grids = mGrids;
+            if (grids == null || !isValidGrid(n, m)) {
+                return;
+            }
+
+            /**
+             * 缩略图的请求被可见区域的调度取消了, 还需要时按照原来的优先级重新提交
+             */
+            if (request.mIsThumb) {
+                if (isThumbRequestValid(request)) {
+                    mTileScheduler.submit(n, m, request.mSampleSize, request.mPriority, true);
+                }
+                return;
+            }
+
+            grids[n][m].clearLoading(request.mSampleSize);
+
+            /**
+             * 预测的请求按照原来的优先级重新提交, 保持进入可见区域的先后顺序
+             */
+            if (isPredictedRequest(request)) {
+                if (grids[n][m].markLoading(request.mSampleSize)) {
+                    mTileScheduler.submit(n, m, request.mSampleSize, request.mPriority);
+                }
+                return;
+            }
+
+            /**
+             * 如果在新的调度中还需要这个单元格, 就重新提交
+             */
+            scheduleUnitIfNeeded(n, m);
+        }
+
+        @Override
+        public void onTileEvicted(TileCache.Tile tile)
+        {
+            ((BitmapUnit) tile.mOwner).onTileEvicted(tile);
+        }
+
+        /**
+         * 回收所有的单元格
+         */
+        private void recycleAllGrids()
+        {
             for (int i = 0; i < mN; ++i) {
                 for (int j = 0; j < mM; ++j) {
-                    if (sn - i >= mn || i - en >= mn || sm - j >= mn || j - em >= mn) {
-                        mGrids[i][j].recycle();
-                    }
+                    mGrids[i][j].recycleAll();
                 }
             }
         }
 
+        /**
+         * 判断是否为有效的单元格
+         */
+        private boolean isValidGrid(int n, int m)
+        {
+            return n >= 0 && n < mN && m >= 0 && m < mM;
+        }
+
+        /**
+         * 得出原图的单元格, 在解码线程中调用
+         */
+        private Rect getUnitRect(int n, int m)
+        {
+            int[] bounds = new int[4];
+            if (!mGeometry.getUnitRect(n, m, bounds)) {
+                return null;
+            }
+
+            return new Rect(bounds[GridGeometry.LEFT], bounds[GridGeometry.TOP],
+                    bounds[GridGeometry.RIGHT], bounds[GridGeometry.BOTTOM]);
+        }
+
+        /**
+         * 获取显示的单元格rect
+         */
+        private Rect getShowBitmapUnit(int n, int m, Rect out)
+        {
+            int[] bounds = mTmpBounds;
+            mGeometry.getShowUnitRect(n, m, mShowBitmapRect.width(), mShowBitmapRect.height(), bounds);
+            out.set(bounds[GridGeometry.LEFT], bounds[GridGeometry.TOP],
+                    bounds[GridGeometry.RIGHT], bounds[GridGeometry.BOTTOM]);
+            return out;
+        }
+
+        /**
+         * 回收不可见区域的bitmap
+         * 不再按照和可见区域的距离来回收, 而是在缓存超出预算时,
+         * 淘汰最久没有画过的 tile, 这样来回拖动时附近的 tile 可以一直保留
+         */
+        private void recycleInvisibleGrids()
+        {
+            mTileCache.trimToSize();
+        }
+
         /**
          * 画出可见的几个格子
          */
         private boolean drawVisibleGrid(Canvas canvas)
         {
-            if ((mSrcBitmap == null && mDecoder == null) ||
+            if (!hasImageSource() ||
                     mGrids == null || mImageRect.width() <= 0 || mImageRect.height() <= 0) {
                 return false;
             }
 
+            mTileCache.beginFrame();
+            mFrameHits = 0;
+            mFrameMisses = 0;
+
             Rect visible = getVisibleGrid();
-            recycleInvisibleGrids(visible);
+            scheduleUnits(visible);
+
+            /**
+             * 开启了帧缓存时只画出新露出来的区域, 内存不足不能使用时直接画
+             */
+            if (!mFrameCacheEnabled || !mFrameCache.draw(canvas, mViewRect.width(), mViewRect.height(),
+                    mViewBitmapRect.left, mViewBitmapRect.top, getFrameKey(), mUnitsPainter)) {
+                drawUnits(canvas, visible);
+            }
+
+            recycleInvisibleGrids();
+
+            return true;
+        }
+
+        private final FrameCache.Painter mUnitsPainter = new FrameCache.Painter()
+        {
+            @Override
+            public void paint(Canvas canvas)
+            {
+                drawUnits(canvas, mVisibleGrid);
+            }
+        };
+
+        /**
+         * 帧缓存的 key: 显示的 bitmap 的尺寸不变时, 两帧之间只是平移
+         */
+        private long getFrameKey()
+        {
+            return ((long) Float.floatToIntBits(mShowBitmapRect.width()) << 32) |
+                    (Float.floatToIntBits(mShowBitmapRect.height()) & 0xFFFFFFFFL);
+        }
+
+        /**
+         * 画出可见的单元格, 在 canvas 的 clip 之外的只 touch, 不画
+         * (只重新画一个 tile 或者帧缓存只画新露出来的区域时)
+         */
+        private void drawUnits(Canvas canvas, Rect visible)
+        {
+            Rect clip = mClipRect;
+            boolean clipped = canvas.getClipBounds(clip);
 
             int sn = visible.top;
             int sm = visible.left;
@@ -1005,130 +2454,79 @@ public class BitmapManager implements IBitmapManager
 
             for (int n = sn; n <= en; ++n) {
                 for (int m = sm; m <= em; ++m) {
-                    Rect rect = getShowBitmapUnit(n, m);
+                    Rect rect = getShowBitmapUnit(n, m, mShowUnitRect);
+                    Rect vRect = toViewCoordinate(rect, mDrawRect);
+                    /**
+                     * 仍然取一次 bitmap, 可见的 tile 不会因为没有画而被淘汰
+                     */
                     Bitmap bitmap = getGridBitmap(n, m);
+                    if (!clipped || !Rect.intersects(vRect, clip)) {
+                        continue;
+                    }
+
                     if (bitmap != null) {
-                        Rect vRect = toViewCoordinate(rect);
                         canvas.drawBitmap(bitmap, null, vRect, null);
                     }
 
                     if (DEBUG) {
                         mPaint.setColor(Color.MAGENTA);
                         mPaint.setStrokeWidth(2);
-                        canvas.drawRect(toViewCoordinate(rect), mPaint);
+                        canvas.drawRect(vRect, mPaint);
                     }
                 }
             }
-
-            return true;
         }
 
         /**
-         * decode出一个可见单元的bitmap
+         * decode出一个单元的bitmap
          * 并保存这个bitmap的 sample size
+         * 会在多个解码线程中同时调用, 所以这里只锁住这一个单元
+         *
+         * @return tile 的来源, 没有得到 tile 时返回 null
          */
-        private synchronized void decodeVisibleUnitBitmap(int n, int m)
-        {
-            if (isValidGrid(n, m) && isVisibleUnit(n, m)) {
-                BitmapUnit unit = mGrids[n][m];
-
-                // 防止二次decode
-                if (unit.mCurSampleSize == mSampleSize) {
-                    return;
-                }
-
-                unit.recycle();
-
-                Rect rect = getUnitRect(n, m);
-                unit.mCurSampleSize = mSampleSize;
-                unit.mBitmap = decodeRectBitmap(rect, unit.mCurSampleSize);
-            }
-        }
-
-        /**
-         * 解码为缩略图的 bitmap
-         */
-        private void decodeThumbUnitBitmap()
+        private IXImageView.TileSource decodeUnitBitmap(BitmapUnit unit, int n, int m, int sampleSize)
         {
-            for (int n = 0; n < mN; ++n) {
-                for (int m = 0; m < mM; ++m) {
-                    Rect rect = getUnitRect(n, m);
-                    if (rect != null) {
-                        mGrids[n][m].mCurSampleSize = mSampleSize;
-                        mGrids[n][m].mThumbBitmap = decodeRectBitmap(rect, mGrids[n][m].mCurSampleSize);
-                    }
-                }
+            // 防止二次decode
+            if (unit.getTile(sampleSize) != null) {
+                return null;
             }
+
+            Rect rect = getUnitRect(n, m);
+            IXImageView.TileSource source = IXImageView.TileSource.MEMORY_CACHE;
+            Bitmap bitmap = mCompressedCache.get(n, m, sampleSize, mBitmapPool);
+            if (bitmap == null) {
+                source = IXImageView.TileSource.DISK_CACHE;
+                bitmap = getDiskCachedBitmap(rect, sampleSize);
+            }
+            if (bitmap == null) {
+                source = IXImageView.TileSource.DECODER;
+                bitmap = decodeAndCacheBitmap(rect, sampleSize);
+            }
+
+            if (bitmap == null) {
+                return null;
+            }
+
+            unit.setTile(new TileCache.Tile(unit, n, m, sampleSize, bitmap));
+            return source;
         }
 
 
         /**
-         * 计算出可见的实际单元格
+         * 计算出可见的实际单元格, 返回的 Rect 每一帧都会复用
          *
          * @return Rect (left=sm, top=sn, right=em, bottom=en)
          */
         private Rect getVisibleGrid()
         {
-            /**
-             * 将RealBitmap 也分割为 N x M 个单元格
-             */
-            /**
-             * 把视图缩小和真实bitmap大小等比例
-             */
-            float vw = mViewRect.width() * 1f / mSampleSize;
-            float vh = mViewRect.height() * 1f / mSampleSize;
-
-            /**
-             * 计算出可见区域的真实bitmap rect
-             */
-            RectF vBRect = rectMulti(getVisibleShowBitmapRect(), getRealShowRatio());
-
-            /**
-             * 根据这个rect , 算出所涉及到的单元格，并判断是否需要重新分配
-             */
-            int sm = (int) (vBRect.left / vw);
-            int sn = (int) (vBRect.top / vh);
-
-            int em = (int) (sm + Math.ceil(vBRect.width() / vw));
-            int en = (int) (sn + Math.ceil(vBRect.height() / vh));
-
-            em = em > mM ? mM : em;
-            en = en > mN ? mN : en;
-
-            return new Rect(sm, sn, em, en);
-        }
-    }
-
-    /**
-     * rect 乘法
-     */
-    private RectF rectMulti(Rect r, float ratio)
-    {
-        return rectMulti(new RectF(r), ratio);
-    }
-
-    private RectF rectMulti(RectF r, float ratio)
-    {
-        float left = r.left * ratio;
-        float top = r.top * ratio;
-        float right = left + r.width() * ratio;
-        float bottom = top + r.height() * ratio;
-
-        return new RectF(left, top, right, bottom);
-    }
-
-    /**
-     * 根据比率来获得合适的采样率, 因为采样率都是以 2^n 来定的
-     */
-    private int computeSampleSize(int size)
-    {
-        int sample = 1;
-        while ((size / 2) != 0) {
-            size /= 2;
-            sample *= 2;
+            int[] bounds = mTmpBounds;
+            mGeometry.getVisibleGrid(mShowBitmapRect.width(), mShowBitmapRect.height(),
+                    mViewBitmapRect.left, mViewBitmapRect.top, mViewBitmapRect.right, mViewBitmapRect.bottom,
+                    GridGeometry.getDecodeSampleSize(mSampleSize), bounds);
+            mVisibleGrid.set(bounds[GridGeometry.LEFT], bounds[GridGeometry.TOP],
+                    bounds[GridGeometry.RIGHT], bounds[GridGeometry.BOTTOM]);
+            return mVisibleGrid;
         }
-
-        return sample;
     }
 
     /**
@@ -1144,7 +2542,7 @@ public class BitmapManager implements IBitmapManager
     public boolean isNotAvailable()
     {
         return (mIsSettingImage ||
-               (mSrcBitmap == null && mDecoder == null) ||
+               !hasImageSource() ||
                 mImageRect.width() <= 0 || mImageRect.height() <= 0);
     }
 
@@ -1159,7 +2557,7 @@ public class BitmapManager implements IBitmapManager
     @Override
     public boolean isTapOnImage(int x, int y)
     {
-        return !isNotAvailable() && toViewCoordinate(mShowBitmapRect).contains(x, y);
+        return !isNotAvailable() && toViewCoordinate(mShowBitmapRect, mTmpRectF).contains(x, y);
     }
 
     /**
@@ -1226,7 +2624,29 @@ public class BitmapManager implements IBitmapManager
         /**
          * 更新视图或者画出图片
          */
-        return !checkOrUpdateViewRect(width, height) && mBitmapGrid.drawVisibleGrid(canvas);
+        XImageView.OnMetricsListener listener = mXImageView.getMetricsListener();
+        long start = listener == null ? 0 : System.nanoTime();
+        boolean drawn = !checkOrUpdateViewRect(width, height) && mBitmapGrid.drawVisibleGrid(canvas);
+        if (drawn && (listener != null || !mIsFirstFrameDrawn)) {
+            long end = System.nanoTime();
+            XImageView view = mXImageView.getInstance();
+            if (listener != null) {
+                listener.onFrameDrawn(view, end - start,
+                        mBitmapGrid.mFrameHits, mBitmapGrid.mFrameMisses, mTileCache.getSize());
+            }
+
+            /**
+             * 没有监听时也要记录, 避免之后设置的监听收到错误的首帧时间
+             */
+            if (!mIsFirstFrameDrawn) {
+                mIsFirstFrameDrawn = true;
+                if (listener != null) {
+                    listener.onFirstFrame(view, end - mSetImageTime);
+                }
+            }
+        }
+
+        return drawn;
     }
 
     @Override
@@ -1241,8 +2661,8 @@ public class BitmapManager implements IBitmapManager
             return NONE;
         }
 
-        Rect oRect = new Rect();
-        toViewCoordinate(mShowBitmapRect).round(oRect);
+        Rect oRect = mTmpRect;
+        toViewCoordinate(mShowBitmapRect, mTmpRectF).round(oRect);
 
         /**
          * 检测边界
@@ -1292,7 +2712,7 @@ public class BitmapManager implements IBitmapManager
         /**
          * 检查到达边界的方向
          */
-        Rect detectRect = new Rect(mViewBitmapRect);
+        Rect detectRect = mViewBitmapRect;
         int result = NONE;
         if (detectRect.left <= 0) {
             result |= LEFT;
@@ -1340,27 +2760,61 @@ public class BitmapManager implements IBitmapManager
         if (isNotAvailable()) {
             return;
         }
-//        Log.e(TAG, "SC: " + sc);
 
-        RectF viewRect = new RectF(mViewRect);
+        if (!computeScaledRect(cx, cy, scale, false, mTmpScaleRectF, mTmpScaleRect)) {
+            // 不能再放大或者缩小了
+            return;
+        }
+
+        mShowBitmapRect.set(mTmpScaleRectF);
+        mViewBitmapRect.set(mTmpScaleRect);
+
+        mXImageView.callPostInvalidate();
+    }
+
+    /**
+     * 计算以 cx, cy 缩放之后显示的 bitmap 的尺寸和 view 在上面的区域, 不改变当前的状态
+     * 只在 UI 线程中调用
+     *
+     * @param cx 中心点的 x
+     * @param cy 中心点的 y
+     * @param scale 缩放系数
+     * @param clamp 超出最大或者最小倍数时是否限制在最大或者最小倍数, 否则返回 false
+     * @param outShow 缩放之后显示的 bitmap 的区域
+     * @param outView 缩放之后 view 在显示的 bitmap 上的区域
+     * @return 是否可以缩放
+     */
+    private boolean computeScaledRect(float cx, float cy, float scale, boolean clamp, RectF outShow, Rect outView)
+    {
+        int viewWidth = mViewRect.width();
+        int viewHeight = mViewRect.height();
         /**
          * 如果图片的长或宽，全在视图内，则以中线进行缩放
          */
-        RectF oRect = toViewCoordinate(mShowBitmapRect);
+        RectF oRect = toViewCoordinate(mShowBitmapRect, mTmpRectF);
 
-//        Log.e(TAG, "ShowRect:" + mShowBitmapRect +"  VC: " + oRect);
         /**
          * 如果宽全在视图内
          */
         if (oRect.left > 0 && oRect.right < mViewRect.right) {
-            cx = viewRect.centerX();
+            cx = mViewRect.exactCenterX();
         }
 
         /**
          * 如果高全在视图内
          */
         if (oRect.top > 0 && oRect.bottom < mViewRect.bottom) {
-            cy = viewRect.centerY();
+            cy = mViewRect.exactCenterY();
+        }
+
+        if (clamp && oRect.width() > 0) {
+            float scaleValue = oRect.width() * scale / mImageRect.width();
+            if (scaleValue > mMaxScaleValue) {
+                scale = mMaxScaleValue * mImageRect.width() / oRect.width();
+            }
+            else if (scaleValue < mMinScaleValue) {
+                scale = mMinScaleValue * mImageRect.width() / oRect.width();
+            }
         }
 
         /**
@@ -1368,66 +2822,68 @@ public class BitmapManager implements IBitmapManager
          */
         float left = (cx - Math.abs(cx - oRect.left) * scale);
         float top = (cy - Math.abs(cy - oRect.top) * scale);
+        float width = oRect.width() * scale;
+        float height = oRect.height() * scale;
 
-        float right = left + oRect.width() * scale;
-        float bottom = top + oRect.height() * scale;
-
-        RectF nRect = new RectF(left, top, right, bottom);
-
-        if (nRect.width() <= mThumbShowBitmapRect.width()-1 || nRect.height() <= mThumbShowBitmapRect.height()-1) {
-            resetShowBitmapRect();
-            return;
+        /**
+         * 比初始大小还小时回到初始大小, 和 resetShowBitmapRect() 一样
+         */
+        if (width <= mThumbShowBitmapRect.width() - 1 || height <= mThumbShowBitmapRect.height() - 1) {
+            outShow.set(mThumbShowBitmapRect);
+            int l = (int) ((outShow.width() - viewWidth) / 2);
+            int t = (int) ((outShow.height() - viewHeight) / 2);
+            outView.set(l, t, l + viewWidth, t + viewHeight);
+            return true;
         }
 
-        float scaleValue = nRect.width() / mImageRect.width();
-        if (scaleValue > mMaxScaleValue || scaleValue < mMinScaleValue) {
-            // 不能再放大或者缩小了
-            return;
+        float scaleValue = width / mImageRect.width();
+        if (!clamp && (scaleValue > mMaxScaleValue || scaleValue < mMinScaleValue)) {
+            return false;
         }
 
         /**
-         * 更新ViewBitmapRect坐标, 并更新显示的bitmap rect 大小
+         * 和 updateViewBitmapRect() 一样, view 在显示的 bitmap 上的位置取整
          */
-        updateViewBitmapRect(nRect);
-//        Log.e(TAG, "ShowRect:" + mShowBitmapRect + "  VC: " + nRect);
+        int viewLeft = (int) -left;
+        int viewTop = (int) -top;
 
         /**
-         * 如果还是小于视图宽度，则需要移动到正中间
+         * 如果还是小于视图宽度，则需要移动到正中间, 否则不能超出边界
          */
+        RectF aRect = mTmpRectF;
+        aRect.set(-viewLeft, -viewTop, width - viewLeft, height - viewTop);
         float nx = 0;
         float ny = 0;
-        RectF aRect = toViewCoordinate(mShowBitmapRect);
-        if (aRect.width() < viewRect.width()) {
-            nx = viewRect.centerX() - aRect.centerX();
+        if (aRect.width() < viewWidth) {
+            nx = mViewRect.exactCenterX() - aRect.centerX();
         }
         else {
             if (aRect.left > 0) {
                 nx = -aRect.left;
             }
-            else if (aRect.right < viewRect.width()) {
-                nx = viewRect.width() - aRect.right;
+            else if (aRect.right < viewWidth) {
+                nx = viewWidth - aRect.right;
             }
         }
 
-        if (aRect.height() < viewRect.height()) {
-            ny = viewRect.centerY() - aRect.centerY();
+        if (aRect.height() < viewHeight) {
+            ny = mViewRect.exactCenterY() - aRect.centerY();
         }
         else {
             if (aRect.top > 0) {
                 ny = -aRect.top;
             }
-            else if (aRect.bottom < viewRect.height()) {
-                ny = viewRect.height() - aRect.bottom;
+            else if (aRect.bottom < viewHeight) {
+                ny = viewHeight - aRect.bottom;
             }
         }
 
         aRect.offset(nx, ny);
-        updateViewBitmapRect(aRect);
-//        Log.e(TAG, "ShowRect:" + mShowBitmapRect+ "  VC: " + nRect);
-
-//        Log.e(TAG, "=====================================================================");
-
-        mXImageView.callPostInvalidate();
+        viewLeft = (int) -aRect.left;
+        viewTop = (int) -aRect.top;
+        outView.set(viewLeft, viewTop, viewLeft + viewWidth, viewTop + viewHeight);
+        outShow.set(0, 0, aRect.width(), aRect.height());
+        return true;
     }
 
 
@@ -1455,6 +2911,11 @@ public class BitmapManager implements IBitmapManager
         }
 
         if (smooth) {
+            /**
+             * 动画结束时的区域和 sample size 在开始时就已经确定, 提前解码
+             */
+            prefetchScaleTarget(cx, cy, dest);
+
             mLastAnimatedValue = 1f;
             ObjectAnimator.ofFloat(1f, dest);
             mValueAnimator = ValueAnimator.ofFloat(1f, dest);
@@ -1506,6 +2967,23 @@ public class BitmapManager implements IBitmapManager
         }
     }
 
+    /**
+     * 计算缩放到目标倍数之后的区域和 sample size (限制在最大和最小倍数之间),
+     * 再以最高的优先级解码目标区域的单元格, 不改变当前显示的状态
+     */
+    private void prefetchScaleTarget(int cx, int cy, float dest)
+    {
+        RectF showRect = new RectF();
+        Rect viewRect = new Rect();
+        if (!computeScaledRect(cx, cy, dest, true, showRect, viewRect)) {
+            return;
+        }
+
+        float showWidth = showRect.width();
+        float showHeight = showRect.height();
+        mBitmapGrid.prefetchScaleTarget(showWidth, showHeight, viewRect, getSampleSize(showWidth, showHeight));
+    }
+
     @Override
     public void scaleTo(float dest, boolean smooth, long smoothTime)
     {
@@ -1635,20 +3113,311 @@ public class BitmapManager implements IBitmapManager
             return;
         }
         mSampleSize = sampleSize;
+        mFrameCache.invalidate();
+
+        mXImageView.callPostInvalidate();
+
+    }
+
+    /**
+     * 开始惯性滑动, 预加载滑动路径上将会进入可见区域的单元格
+     *
+     * @param dx 总共会滑动的距离, 和 move() 的方向一样
+     * @param dy 总共会滑动的距离, 和 move() 的方向一样
+     */
+    @Override
+    public void prefetchFling(int dx, int dy)
+    {
+        if (isNotAvailable()) {
+            return;
+        }
+
+        mBitmapGrid.prefetchFling(dx, dy);
+    }
+
+    /**
+     * 惯性滑动被打断, 路径上还没有开始解码的单元格不再需要
+     */
+    @Override
+    public void cancelFlingPrefetch()
+    {
+        mBitmapGrid.cancelPrediction();
+    }
+
+    /**
+     * 设置解码线程的数量, 在下一次设置图片时生效
+     *
+     * @param count 线程数量, &lt;= 0 时使用默认值
+     */
+    @Override
+    public synchronized void setDecodeWorkerCount(int count)
+    {
+        mDecodeWorkerCount = count <= 0 ? DecoderPool.getDefaultCount() : count;
+    }
 
+    /**
+     * 开启或者关闭拖动时的帧缓存, 关闭时释放离屏 bitmap
+     */
+    @Override
+    public void setFrameCacheEnabled(boolean enabled)
+    {
+        mFrameCacheEnabled = enabled;
+        if (!enabled) {
+            mFrameCache.release();
+        }
         mXImageView.callPostInvalidate();
+    }
+
+    /**
+     * 按照显示的分辨率解码, 在下一次设置图片时生效
+     */
+    @Override
+    public synchronized void setExactResolutionEnabled(boolean enabled)
+    {
+        mExactResolutionEnabled = enabled;
+    }
+
+    /**
+     * 使用整个应用共享的调度器, 在下一次设置图片时生效
+     */
+    @Override
+    public synchronized void setSharedSchedulerEnabled(boolean enabled)
+    {
+        mUseSharedScheduler = enabled;
+    }
 
+    /**
+     * view 是否在屏幕上
+     */
+    @Override
+    public void setOnScreen(boolean onScreen)
+    {
+        mIsOnScreen = onScreen;
+        TileScheduler.Client scheduler = mTileScheduler;
+        if (scheduler != null) {
+            scheduler.setForeground(onScreen);
+        }
     }
 
     @Override
     public void destroy()
     {
-        mLoadingThread.quit();
-        if (mCacheFile != null) {
-            mCacheFile.delete(); // 删除临时文件
+        releaseScheduler();
+        recycleAll(); // 同时删除 bitmap 的缓存文件
+        mBitmapPool.clear();
+
+        mXImageView.callPostInvalidate();
+    }
+
+    /**
+     * 设置单元格的大小, 在下一次 setImage() 时生效
+     *
+     * @param size 单元格的边长, &lt;= 0 时使用默认值
+     */
+    @Override
+    public void setTileSize(int size)
+    {
+        mTileSize = size <= 0 ? DEFAULT_TILE_SIZE : size;
+    }
+
+    /**
+     * 设置 tile 缓存的大小
+     *
+     * @param bytes 字节数, &lt;= 0 时使用默认值
+     */
+    @Override
+    public void setTileCacheSize(long bytes)
+    {
+        mTileCache.setMaxBytes(bytes);
+    }
+
+    /**
+     * 内存不足时分阶段释放, 等级越高执行的阶段越多
+     */
+    public final static int TRIM_STAGE_PREFETCHED = 1;
+    public final static int TRIM_STAGE_OTHER_LEVELS = 2;
+    public final static int TRIM_STAGE_THUMBNAILS = 3;
+
+    /**
+     * 缩略图最多缩小到的 sample size
+     */
+    private final static int MAX_THUMB_SAMPLE_SIZE = 1 << (TileCache.MAX_OCTAVE - 1);
+
+    /**
+     * 根据系统的内存等级分阶段释放内存, 每一个阶段释放的字节数通过 OnMetricsListener 报告
+     *
+     * @param level ComponentCallbacks2 的 TRIM_MEMORY_* 等级
+     * @return 总共释放的字节数
+     */
+    @Override
+    public long trimMemory(int level)
+    {
+        int stages = getTrimStages(level);
+        if (stages <= 0) {
+            return 0;
+        }
+
+        long total = 0;
+        for (int stage = TRIM_STAGE_PREFETCHED; stage <= stages; ++stage) {
+            mIsTrimmingMemory = true;
+            long bytes;
+            try {
+                bytes = trimStage(stage);
+            }
+            finally {
+                mIsTrimmingMemory = false;
+            }
+            total += bytes;
+
+            if (DEBUG) {
+                Log.e(TAG, "Trim memory level: " + level + " stage: " + stage + " freed: " + bytes);
+            }
+
+            XImageView.OnMetricsListener listener = mXImageView.getMetricsListener();
+            if (listener != null) {
+                listener.onMemoryTrimmed(mXImageView.getInstance(), level, stage, bytes);
+            }
         }
-        recycleAll();
 
+        mFrameCache.invalidate();
         mXImageView.callPostInvalidate();
+        return total;
+    }
+
+    /**
+     * TRIM_MEMORY_* 等级对应执行到第几个阶段
+     * RUNNING_MODERATE, UI_HIDDEN: 1
+     * RUNNING_LOW, BACKGROUND: 2
+     * RUNNING_CRITICAL, MODERATE, COMPLETE: 3
+     */
+    private static int getTrimStages(int level)
+    {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return TRIM_STAGE_THUMBNAILS;
+        }
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return TRIM_STAGE_OTHER_LEVELS;
+        }
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return TRIM_STAGE_PREFETCHED;
+        }
+
+        return 0;
+    }
+
+    /**
+     * 执行一个阶段, 淘汰的 tile 会先放回复用池, 所以最后清空复用池
+     *
+     * @return 释放的字节数
+     */
+    private long trimStage(int stage)
+    {
+        long bytes = mBitmapPool.getSize();
+        switch (stage) {
+            case TRIM_STAGE_PREFETCHED:
+                /**
+                 * 帧缓存 (下一帧重新创建), 以及没有画过的 tile: 惯性滑动, 缩放目标和可见区域外一圈的预加载
+                 */
+                bytes += mFrameCache.release();
+                bytes += mTileCache.evict(new TileCache.Filter()
+                {
+                    @Override
+                    public boolean shouldEvict(TileCache.Tile tile)
+                    {
+                        return !tile.wasDrawn();
+                    }
+                });
+                break;
+
+            case TRIM_STAGE_OTHER_LEVELS:
+                bytes += mCompressedCache.clear();
+                final int level = TileCache.Tile.getLevel(mSampleSize);
+                bytes += mTileCache.evict(new TileCache.Filter()
+                {
+                    @Override
+                    public boolean shouldEvict(TileCache.Tile tile)
+                    {
+                        return tile.getLevel() != level;
+                    }
+                });
+                break;
+
+            case TRIM_STAGE_THUMBNAILS:
+                bytes += mBitmapGrid.downsampleThumbs();
+                break;
+        }
+
+        mBitmapPool.clear();
+        return bytes;
+    }
+
+    /**
+     * @return 单元格 bitmap 的复用池, 可以用来查看复用的命中次数
+     */
+    @Override
+    public BitmapPool getBitmapPool()
+    {
+        return mBitmapPool;
+    }
+
+    /**
+     * 开启或者关闭压缩的内存缓存, 关闭时清空
+     */
+    @Override
+    public void setCompressedTileCacheEnabled(boolean enabled)
+    {
+        mCompressedCache.setEnabled(enabled);
+    }
+
+    /**
+     * 设置压缩的内存缓存的压缩格式
+     */
+    @Override
+    public void setCompressedTileCacheFormat(Bitmap.CompressFormat format, int quality)
+    {
+        mCompressedCache.setCompressFormat(format, quality);
+    }
+
+    /**
+     * 设置压缩的内存缓存的大小
+     */
+    @Override
+    public void setCompressedTileCacheSize(long bytes)
+    {
+        mCompressedCache.setMaxBytes(bytes);
+    }
+
+    /**
+     * @return 压缩的内存缓存, 可以用来查看避免了多少次重新解码
+     */
+    @Override
+    public CompressedTileCache getCompressedTileCache()
+    {
+        return mCompressedCache;
+    }
+
+    /**
+     * 开启或者关闭磁盘缓存, 在下一次 setImage() 时生效
+     */
+    @Override
+    public void setDiskCacheEnabled(boolean enabled)
+    {
+        mDiskCacheEnabled = enabled;
+        if (enabled && mDiskCache == null) {
+            mDiskCache = DiskTileCache.getInstance(mXImageView.getCacheDir());
+        }
+    }
+
+    /**
+     * 设置磁盘缓存的大小, 所有的 XImageView 共享同一个磁盘缓存
+     */
+    @Override
+    public void setDiskCacheSize(long bytes)
+    {
+        DiskTileCache.getInstance(mXImageView.getCacheDir()).setMaxBytes(bytes);
     }
 }
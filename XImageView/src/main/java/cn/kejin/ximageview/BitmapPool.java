@@ -0,0 +1,153 @@
+package cn.kejin.ximageview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * 单元格 bitmap 的复用池
+ * 被回收的单元格 bitmap 按照 (宽, 高, config) 分桶保存,
+ * 解码时通过 BitmapFactory.Options.inBitmap 复用, 避免拖动时不断地分配大块内存
+ */
+public class BitmapPool
+{
+    /**
+     * 默认最多缓存的字节数
+     */
+    private final static long DEFAULT_MAX_BYTES = Math.min(Runtime.getRuntime().maxMemory() / 16, 32 * 1024 * 1024);
+
+    private final HashMap<Long, ArrayDeque<Bitmap>> mBuckets = new HashMap<Long, ArrayDeque<Bitmap>>();
+
+    private final long mMaxBytes;
+
+    private long mCurBytes = 0;
+
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+
+    public BitmapPool()
+    {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public BitmapPool(long maxBytes)
+    {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * BitmapRegionDecoder 从 JELLY_BEAN 开始才支持 inBitmap
+     */
+    public static boolean isSupported()
+    {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    }
+
+    private static long getKey(int width, int height, Bitmap.Config config)
+    {
+        return ((long) width << 36) | ((long) height << 8) | (config == null ? 0xFF : config.ordinal());
+    }
+
+    /**
+     * 取出一个可以复用的 bitmap
+     *
+     * @param width 宽
+     * @param height 高
+     * @param config config
+     * @return 没有时返回 null
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config)
+    {
+        ArrayDeque<Bitmap> bucket = mBuckets.get(getKey(width, height, config));
+        while (bucket != null && !bucket.isEmpty()) {
+            Bitmap bitmap = bucket.pop();
+            mCurBytes -= bitmap.getByteCount();
+            if (!bitmap.isRecycled()) {
+                mHitCount += 1;
+                return bitmap;
+            }
+        }
+
+        mMissCount += 1;
+        return null;
+    }
+
+    /**
+     * 设置解码的 options, 如果有可以复用的 bitmap 就设置为 inBitmap
+     *
+     * @param options options
+     * @param width 解码出来的宽
+     * @param height 解码出来的高
+     */
+    public void prepareOptions(BitmapFactory.Options options, int width, int height)
+    {
+        options.inMutable = true;
+        options.inBitmap = isSupported() ? get(width, height, options.inPreferredConfig) : null;
+    }
+
+    /**
+     * 回收一个 bitmap, 只有可变的 bitmap 才能被复用
+     *
+     * @param bitmap bitmap
+     */
+    public synchronized void put(Bitmap bitmap)
+    {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || !isSupported()) {
+            return;
+        }
+
+        int bytes = bitmap.getByteCount();
+        if (mCurBytes + bytes > mMaxBytes) {
+            return;
+        }
+
+        long key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayDeque<Bitmap>();
+            mBuckets.put(key, bucket);
+        }
+        else if (bucket.contains(bitmap)) {
+            return;
+        }
+
+        bucket.push(bitmap);
+        mCurBytes += bytes;
+    }
+
+    /**
+     * 清空
+     */
+    public synchronized void clear()
+    {
+        mBuckets.clear();
+        mCurBytes = 0;
+    }
+
+    /**
+     * @return 复用成功的次数
+     */
+    public synchronized long getHitCount()
+    {
+        return mHitCount;
+    }
+
+    /**
+     * @return 没有可以复用的 bitmap, 需要重新分配的次数
+     */
+    public synchronized long getMissCount()
+    {
+        return mMissCount;
+    }
+
+    /**
+     * @return 当前池中的字节数
+     */
+    public synchronized long getSize()
+    {
+        return mCurBytes;
+    }
+}
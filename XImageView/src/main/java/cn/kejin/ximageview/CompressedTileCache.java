@@ -0,0 +1,305 @@
+package cn.kejin.ximageview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 被 TileCache 淘汰的 tile 的第二级缓存, 在内存中保存压缩之后的数据
+ * 默认压缩为 PNG (无损, 解压之后和原来的 tile 完全一样), 可以通过 setCompressFormat() 改为 JPEG 或者 WebP,
+ * 体积更小 (JPEG 大约是像素的 1/10) 但是有损, 放大到 1:1 时可以看出来; 有透明通道的 tile 总是使用 PNG
+ * 再次需要这个 tile 时直接解压, 比从图片源 decodeRegion 快得多 (比如渐进式的 JPEG 和 PNG)
+ *
+ * tile 由 (row, col, sampleSize) 来区分, 超出预算时淘汰最久没有使用的
+ * 每一个 BitmapManager 有自己的实例, 设置新的图片时清空
+ */
+public class CompressedTileCache
+{
+    /**
+     * 默认最多缓存的字节数 (压缩之后)
+     */
+    public final static long DEFAULT_MAX_BYTES = Math.min(Runtime.getRuntime().maxMemory() / 16, 16 * 1024 * 1024);
+
+    /**
+     * 默认的压缩格式, 无损
+     */
+    public final static Bitmap.CompressFormat DEFAULT_FORMAT = Bitmap.CompressFormat.PNG;
+
+    /**
+     * 一个压缩的 tile
+     */
+    private static class Entry
+    {
+        final byte[] mData;
+        final int mWidth;
+        final int mHeight;
+        final Bitmap.Config mConfig;
+
+        Entry(byte[] data, int width, int height, Bitmap.Config config)
+        {
+            mData = data;
+            mWidth = width;
+            mHeight = height;
+            mConfig = config;
+        }
+    }
+
+    /**
+     * 按照访问顺序排列, 最前面的是最久没有使用的
+     */
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<Long, Entry>(64, 0.75f, true);
+
+    private boolean mIsEnabled = false;
+
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+
+    private Bitmap.CompressFormat mFormat = DEFAULT_FORMAT;
+    private int mQuality = 100;
+
+    private long mCurBytes = 0;
+
+    /**
+     * 每一次清空都会加 1, 清空之前开始压缩的 tile 不会再被保存
+     */
+    private int mGeneration = 0;
+
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private long mPutCount = 0;
+
+    private static long getKey(int row, int col, int sampleSize)
+    {
+        return ((long) row << 36) | ((long) col << 8) | TileCache.Tile.getLevel(sampleSize);
+    }
+
+    public synchronized void setEnabled(boolean enabled)
+    {
+        mIsEnabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    public synchronized boolean isEnabled()
+    {
+        return mIsEnabled;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes)
+    {
+        mMaxBytes = maxBytes <= 0 ? DEFAULT_MAX_BYTES : maxBytes;
+        trimToSize();
+    }
+
+    public synchronized long getMaxBytes()
+    {
+        return mMaxBytes;
+    }
+
+    /**
+     * 设置压缩格式, 之后压缩的 tile 生效, 已经保存的不受影响
+     *
+     * @param format null 时使用默认的 PNG (无损); JPEG 和 WebP 是有损的, 只用于不透明的 tile
+     * @param quality 有损压缩的质量, 0 - 100
+     */
+    public synchronized void setCompressFormat(Bitmap.CompressFormat format, int quality)
+    {
+        mFormat = format == null ? DEFAULT_FORMAT : format;
+        mQuality = Math.max(0, Math.min(100, quality));
+    }
+
+    public synchronized Bitmap.CompressFormat getCompressFormat()
+    {
+        return mFormat;
+    }
+
+    public synchronized int getGeneration()
+    {
+        return mGeneration;
+    }
+
+    /**
+     * @return 是否已经有这个 tile, 已经有时不用再压缩一次
+     */
+    public synchronized boolean contains(int row, int col, int sampleSize)
+    {
+        return mEntries.containsKey(getKey(row, col, sampleSize));
+    }
+
+    /**
+     * 压缩并保存一个 tile, 比较耗时, 不要在 UI 线程中调用
+     *
+     * @param generation 开始压缩之前的 getGeneration(), 之后被清空过就不再保存
+     * @return 是否保存了
+     */
+    public boolean put(int generation, int row, int col, int sampleSize, Bitmap bitmap)
+    {
+        if (bitmap == null || bitmap.isRecycled() || bitmap.getConfig() == null) {
+            return false;
+        }
+
+        Bitmap.CompressFormat format;
+        int quality;
+        synchronized (this) {
+            if (!mIsEnabled || generation != mGeneration) {
+                return false;
+            }
+            format = mFormat;
+            quality = mQuality;
+        }
+
+        /**
+         * 有损的格式不一定保留透明通道, 有透明的 tile 总是使用 PNG
+         */
+        if (format != Bitmap.CompressFormat.PNG && bitmap.hasAlpha()) {
+            format = Bitmap.CompressFormat.PNG;
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream(bitmap.getByteCount() / 8);
+        if (!bitmap.compress(format, quality, os)) {
+            return false;
+        }
+
+        Entry entry = new Entry(os.toByteArray(), bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        synchronized (this) {
+            if (!mIsEnabled || generation != mGeneration || entry.mData.length > mMaxBytes) {
+                return false;
+            }
+
+            Entry old = mEntries.put(getKey(row, col, sampleSize), entry);
+            mCurBytes += entry.mData.length - (old == null ? 0 : old.mData.length);
+            mPutCount += 1;
+            trimToSize();
+        }
+
+        return true;
+    }
+
+    /**
+     * 解压出一个 tile
+     *
+     * @param pool 复用池, 尽量复用已经回收的 bitmap
+     * @return 没有缓存时返回 null
+     */
+    public Bitmap get(int row, int col, int sampleSize, BitmapPool pool)
+    {
+        Entry entry;
+        synchronized (this) {
+            if (!mIsEnabled) {
+                return null;
+            }
+
+            entry = mEntries.get(getKey(row, col, sampleSize));
+            if (entry == null) {
+                mMissCount += 1;
+                return null;
+            }
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = entry.mConfig;
+        if (pool != null) {
+            pool.prepareOptions(options, entry.mWidth, entry.mHeight);
+        }
+        else {
+            options.inMutable = true;
+        }
+
+        Bitmap bitmap = decode(entry, options);
+        if (bitmap == null && options.inBitmap != null) {
+            if (pool != null) {
+                pool.put(options.inBitmap);
+            }
+            options.inBitmap = null;
+            bitmap = decode(entry, options);
+        }
+
+        synchronized (this) {
+            if (bitmap != null) {
+                mHitCount += 1;
+            }
+            else {
+                mMissCount += 1;
+            }
+        }
+
+        return bitmap;
+    }
+
+    private static Bitmap decode(Entry entry, BitmapFactory.Options options)
+    {
+        try {
+            return BitmapFactory.decodeByteArray(entry.mData, 0, entry.mData.length, options);
+        }
+        catch (IllegalArgumentException e) {
+            /**
+             * inBitmap 不能复用时会抛出异常
+             */
+            return null;
+        }
+    }
+
+    /**
+     * 清空, 正在压缩中的 tile 也不会再被保存
+     *
+     * @return 释放的字节数
+     */
+    public synchronized long clear()
+    {
+        long bytes = mCurBytes;
+        mEntries.clear();
+        mCurBytes = 0;
+        mGeneration += 1;
+        return bytes;
+    }
+
+    private void trimToSize()
+    {
+        Iterator<Map.Entry<Long, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mCurBytes > mMaxBytes && iterator.hasNext()) {
+            mCurBytes -= iterator.next().getValue().mData.length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return 从这里解压, 避免了重新解码的次数
+     */
+    public synchronized long getHitCount()
+    {
+        return mHitCount;
+    }
+
+    /**
+     * @return 没有缓存, 需要重新解码的次数
+     */
+    public synchronized long getMissCount()
+    {
+        return mMissCount;
+    }
+
+    /**
+     * @return 压缩保存的次数
+     */
+    public synchronized long getPutCount()
+    {
+        return mPutCount;
+    }
+
+    /**
+     * @return 当前缓存的字节数 (压缩之后)
+     */
+    public synchronized long getSize()
+    {
+        return mCurBytes;
+    }
+
+    public synchronized int getCount()
+    {
+        return mEntries.size();
+    }
+}
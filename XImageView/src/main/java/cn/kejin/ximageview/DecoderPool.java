@@ -0,0 +1,312 @@
+package cn.kejin.ximageview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+
+/**
+ * BitmapRegionDecoder 池
+ * 所有的 decoder 都是打开同一个图片源, 每个解码线程在解码时取出一个空闲的 decoder,
+ * 这样多个单元格可以同时解码, 而不需要互相等待同一把锁
+ *
+ * decoder 是按需创建的, 只有在所有 decoder 都在忙并且还没有达到上限时才会打开一个新的
+ *
+ * 图片源可以是文件路径, FileDescriptor 或者输入流,
+ * 文件路径直接由 decoder 随机读取, 不需要把整个文件读到内存中;
+ * 输入流只能读取一次, 所以只打开一个 decoder
+ */
+class DecoderPool implements IRegionDecoder
+{
+    private final static boolean DEBUG = IXImageView.DEBUG;
+    private final static String TAG = "DecoderPool";
+
+    /**
+     * 默认最多的 decoder 数量, 每个 decoder 都会占用一份索引内存, 所以不宜过多
+     */
+    private final static int MAX_DEFAULT_DECODER_COUNT = 4;
+
+    /**
+     * 打开一个新的 decoder
+     */
+    private interface Opener
+    {
+        BitmapRegionDecoder open() throws IOException;
+    }
+
+    private final Opener mOpener;
+
+    /**
+     * 图片的宽高
+     */
+    private final int mWidth;
+    private final int mHeight;
+
+    /**
+     * 最多可以打开的 decoder 数量
+     */
+    private int mMaxCount;
+
+    /**
+     * 已经打开的 decoder 数量 (包括正在使用中的)
+     */
+    private int mOpenedCount = 0;
+
+    /**
+     * 空闲的 decoder
+     */
+    private final ArrayDeque<BitmapRegionDecoder> mIdleDecoders = new ArrayDeque<BitmapRegionDecoder>();
+
+    private boolean mIsRecycled = false;
+
+    private final Object mLock = new Object();
+
+    private DecoderPool(Opener opener, int maxCount) throws IOException
+    {
+        mOpener = opener;
+        mMaxCount = Math.max(1, maxCount);
+
+        /**
+         * 第一个 decoder 直接打开, 用于获取图片的宽高
+         */
+        BitmapRegionDecoder decoder = opener.open();
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+
+        mOpenedCount = 1;
+        mIdleDecoders.push(decoder);
+    }
+
+    /**
+     * 从输入流创建 DecoderPool, 只有一个 decoder
+     * BitmapRegionDecoder 会把整个流缓存在 native 内存中, 每多一个 decoder 就多一份拷贝,
+     * 对很大的图片 (比如扫描图) 会内存不足, 所以输入流不使用多个 decoder
+     *
+     * @param is 输入流, 读取完成后会被关闭
+     * @return DecoderPool
+     * @throws IOException 读取失败或者不支持的图片格式
+     */
+    public static DecoderPool newInstance(final InputStream is) throws IOException
+    {
+        try {
+            return new DecoderPool(new Opener()
+            {
+                @Override
+                public BitmapRegionDecoder open() throws IOException
+                {
+                    return BitmapRegionDecoder.newInstance(is, false);
+                }
+            }, 1);
+        }
+        finally {
+            try {
+                is.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 直接打开文件, 每个 decoder 都独立地打开这个文件, 按需随机读取
+     *
+     * @param path 文件路径
+     * @param maxCount 最多的 decoder 数量
+     * @return DecoderPool
+     * @throws IOException 打开失败或者不支持的图片格式
+     */
+    public static DecoderPool newInstance(final String path, int maxCount) throws IOException
+    {
+        return new DecoderPool(new Opener()
+        {
+            @Override
+            public BitmapRegionDecoder open() throws IOException
+            {
+                return BitmapRegionDecoder.newInstance(path, true);
+            }
+        }, maxCount);
+    }
+
+    /**
+     * 通过 FileDescriptor 打开
+     * 同一个 FileDescriptor 的读取位置是共享的, 多个 decoder 同时读取会互相干扰, 所以只打开一个 decoder
+     *
+     * @param fd FileDescriptor, 由调用者负责关闭
+     * @return DecoderPool
+     * @throws IOException 打开失败或者不支持的图片格式
+     */
+    public static DecoderPool newInstance(final FileDescriptor fd) throws IOException
+    {
+        return new DecoderPool(new Opener()
+        {
+            @Override
+            public BitmapRegionDecoder open() throws IOException
+            {
+                return BitmapRegionDecoder.newInstance(fd, true);
+            }
+        }, 1);
+    }
+
+    /**
+     * 默认的 decoder 数量, 和 CPU 的核数相关, 留一个核给 UI 线程
+     *
+     * @return int
+     */
+    public static int getDefaultCount()
+    {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cores - 1, MAX_DEFAULT_DECODER_COUNT));
+    }
+
+    @Override
+    public int getWidth()
+    {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return mHeight;
+    }
+
+    public int getMaxCount()
+    {
+        synchronized (mLock) {
+            return mMaxCount;
+        }
+    }
+
+    /**
+     * 解码出一块 bitmap, 可以在多个线程中同时调用
+     *
+     * @param rect 原图中的区域
+     * @param options options
+     * @return bitmap, 如果已经被回收或者解码失败返回 null
+     */
+    @Override
+    public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options)
+    {
+        BitmapRegionDecoder decoder = acquire();
+        if (decoder == null) {
+            return null;
+        }
+
+        try {
+            return decoder.decodeRegion(rect, options);
+        }
+        catch (IllegalStateException e) {
+            // decoder 已经被回收
+            return null;
+        }
+        catch (IllegalArgumentException e) {
+            if (DEBUG) {
+                Log.e(TAG, "Decode region failed: " + rect + " " + e);
+            }
+            return null;
+        }
+        finally {
+            release(decoder);
+        }
+    }
+
+    /**
+     * 取出一个空闲的 decoder, 如果没有空闲的并且还没有达到上限, 就打开一个新的,
+     * 否则等待其他线程释放
+     */
+    private BitmapRegionDecoder acquire()
+    {
+        while (true) {
+            synchronized (mLock) {
+                while (true) {
+                    if (mIsRecycled) {
+                        return null;
+                    }
+
+                    if (!mIdleDecoders.isEmpty()) {
+                        return mIdleDecoders.pop();
+                    }
+
+                    if (mOpenedCount < mMaxCount) {
+                        mOpenedCount += 1;
+                        break;
+                    }
+
+                    try {
+                        mLock.wait();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+            }
+
+            /**
+             * 在锁之外打开新的 decoder, 避免阻塞其他正在解码的线程
+             */
+            try {
+                long before = System.currentTimeMillis();
+                BitmapRegionDecoder decoder = mOpener.open();
+                if (DEBUG) {
+                    Log.e(TAG, "Open decoder Spend Time: " + (System.currentTimeMillis() - before));
+                }
+                return decoder;
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                synchronized (mLock) {
+                    /**
+                     * 打开失败, 以后都不再尝试打开新的 decoder, 只使用已有的
+                     */
+                    mOpenedCount -= 1;
+                    mMaxCount = Math.max(1, mOpenedCount);
+                }
+            }
+        }
+    }
+
+    private void release(BitmapRegionDecoder decoder)
+    {
+        synchronized (mLock) {
+            if (mIsRecycled) {
+                decoder.recycle();
+            }
+            else {
+                mIdleDecoders.push(decoder);
+            }
+            mLock.notify();
+        }
+    }
+
+    @Override
+    public boolean isRecycled()
+    {
+        synchronized (mLock) {
+            return mIsRecycled;
+        }
+    }
+
+    /**
+     * 回收所有的 decoder, 正在使用中的 decoder 会在解码结束后被回收
+     */
+    @Override
+    public void recycle()
+    {
+        synchronized (mLock) {
+            mIsRecycled = true;
+            for (BitmapRegionDecoder decoder : mIdleDecoders) {
+                decoder.recycle();
+            }
+            mIdleDecoders.clear();
+            mLock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package cn.kejin.ximageview;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 磁盘上的 tile 和缩略图缓存, 保存在 IXImageView.getCacheDir() 下
+ * 以 图片源的标识 + 区域 + sample size 作为 key,
+ * 文件中直接保存 bitmap 的像素 (copyPixelsToBuffer), 读取时不需要解码, 直接拷贝像素
+ *
+ * 总大小超出上限时, 淘汰最久没有读写过的文件
+ * 同一个进程中所有的 XImageView 共享一个实例
+ */
+class DiskTileCache
+{
+    private final static boolean DEBUG = IXImageView.DEBUG;
+    private final static String TAG = "DiskTileCache";
+
+    private final static String DIR_NAME = "ximageview-tiles";
+
+    /**
+     * 默认的磁盘缓存大小
+     */
+    public final static long DEFAULT_MAX_BYTES = 100 * 1024 * 1024;
+
+    /**
+     * 文件头: magic, width, height, config
+     */
+    private final static int MAGIC = 0x58494D47;
+    private final static int HEADER_SIZE = 16;
+
+    private static DiskTileCache sInstance = null;
+
+    private final File mDir;
+
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+
+    private long mCurBytes = 0;
+
+    /**
+     * 文件名和文件大小, 按照访问顺序排列
+     */
+    private LinkedHashMap<String, Long> mEntries = null;
+
+    /**
+     * 每个线程复用一个 buffer, 避免每次读写都分配
+     */
+    private final ThreadLocal<ByteBuffer> mBuffers = new ThreadLocal<ByteBuffer>();
+
+    private DiskTileCache(File dir)
+    {
+        mDir = dir;
+    }
+
+    public static synchronized DiskTileCache getInstance(File cacheDir)
+    {
+        if (sInstance == null) {
+            sInstance = new DiskTileCache(new File(cacheDir, DIR_NAME));
+        }
+
+        return sInstance;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes)
+    {
+        mMaxBytes = maxBytes <= 0 ? DEFAULT_MAX_BYTES : maxBytes;
+        trimToSize();
+    }
+
+    /**
+     * 读取缓存的图片尺寸
+     *
+     * @param sourceKey 图片源的标识
+     * @return {width, height}, 没有时返回 null
+     */
+    public int[] getImageSize(String sourceKey)
+    {
+        ByteBuffer buffer = read(getFileName(sourceKey + "#size"), HEADER_SIZE);
+        if (buffer == null || buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            return null;
+        }
+
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        return (width > 0 && height > 0) ? new int[] {width, height} : null;
+    }
+
+    public void putImageSize(String sourceKey, int width, int height)
+    {
+        ByteBuffer buffer = getBuffer(HEADER_SIZE);
+        buffer.putInt(MAGIC).putInt(width).putInt(height).putInt(0);
+        buffer.flip();
+        write(getFileName(sourceKey + "#size"), buffer);
+    }
+
+    /**
+     * 读取一块缓存的 bitmap
+     *
+     * @param sourceKey 图片源的标识
+     * @param rect 原图中的区域
+     * @param sampleSize sample size
+     * @param config config
+     * @param pool 复用池, 尽量复用已经回收的 bitmap
+     * @return 没有缓存时返回 null
+     */
+    public Bitmap get(String sourceKey, Rect rect, int sampleSize, Bitmap.Config config, BitmapPool pool)
+    {
+        ByteBuffer buffer = read(getTileFileName(sourceKey, rect, sampleSize, config), -1);
+        if (buffer == null || buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            return null;
+        }
+
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int ordinal = buffer.getInt();
+        Bitmap.Config[] configs = Bitmap.Config.values();
+        if (width <= 0 || height <= 0 || ordinal < 0 || ordinal >= configs.length) {
+            return null;
+        }
+
+        Bitmap.Config bitmapConfig = configs[ordinal];
+        Bitmap bitmap = pool == null ? null : pool.get(width, height, bitmapConfig);
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, bitmapConfig);
+        }
+
+        if (buffer.remaining() < bitmap.getByteCount()) {
+            if (pool != null) {
+                pool.put(bitmap);
+            }
+            return null;
+        }
+
+        bitmap.copyPixelsFromBuffer(buffer);
+        return bitmap;
+    }
+
+    /**
+     * 保存一块 bitmap
+     */
+    public void put(String sourceKey, Rect rect, int sampleSize, Bitmap.Config config, Bitmap bitmap)
+    {
+        if (bitmap == null || bitmap.isRecycled() || bitmap.getConfig() == null) {
+            return;
+        }
+
+        ByteBuffer buffer = getBuffer(HEADER_SIZE + bitmap.getByteCount());
+        buffer.putInt(MAGIC).putInt(bitmap.getWidth()).putInt(bitmap.getHeight()).putInt(bitmap.getConfig().ordinal());
+        bitmap.copyPixelsToBuffer(buffer);
+        buffer.flip();
+
+        write(getTileFileName(sourceKey, rect, sampleSize, config), buffer);
+    }
+
+    private String getTileFileName(String sourceKey, Rect rect, int sampleSize, Bitmap.Config config)
+    {
+        return getFileName(sourceKey + "#" + rect.left + "," + rect.top + "," + rect.right + "," + rect.bottom +
+                "@" + sampleSize + "/" + config);
+    }
+
+    private static String getFileName(String key)
+    {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes());
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+                builder.append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            return String.valueOf(key.hashCode());
+        }
+    }
+
+    private ByteBuffer getBuffer(int capacity)
+    {
+        ByteBuffer buffer = mBuffers.get();
+        if (buffer == null || buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+            mBuffers.set(buffer);
+        }
+
+        buffer.clear();
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    /**
+     * 读取整个文件, 返回的 buffer 是当前线程复用的
+     *
+     * @param maxLength 最多读取的长度, &lt; 0 表示全部
+     */
+    private ByteBuffer read(String name, int maxLength)
+    {
+        if (!touch(name)) {
+            return null;
+        }
+
+        File file = new File(mDir, name);
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            FileChannel channel = fis.getChannel();
+            long size = channel.size();
+            int length = (int) (maxLength < 0 ? size : Math.min(size, maxLength));
+            ByteBuffer buffer = getBuffer(length);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // read all
+            }
+            buffer.flip();
+            return buffer;
+        }
+        catch (IOException e) {
+            if (DEBUG) {
+                Log.e(TAG, "Read cache failed: " + e);
+            }
+            remove(name);
+            return null;
+        }
+        finally {
+            close(fis);
+        }
+    }
+
+    private void write(String name, ByteBuffer buffer)
+    {
+        File tmp = new File(mDir, name + "." + Thread.currentThread().getId() + ".tmp");
+        FileOutputStream fos = null;
+        long length = buffer.remaining();
+        try {
+            if (!mDir.exists() && !mDir.mkdirs()) {
+                return;
+            }
+
+            fos = new FileOutputStream(tmp);
+            FileChannel channel = fos.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            fos.close();
+            fos = null;
+
+            File file = new File(mDir, name);
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                return;
+            }
+        }
+        catch (IOException e) {
+            if (DEBUG) {
+                Log.e(TAG, "Write cache failed: " + e);
+            }
+            tmp.delete();
+            return;
+        }
+        finally {
+            close(fos);
+        }
+
+        synchronized (this) {
+            ensureEntries();
+            Long old = mEntries.put(name, length);
+            mCurBytes += length - (old == null ? 0 : old);
+            trimToSize();
+        }
+    }
+
+    /**
+     * 更新访问顺序
+     *
+     * @return 是否存在这个文件
+     */
+    private synchronized boolean touch(String name)
+    {
+        ensureEntries();
+        if (mEntries.get(name) == null) {
+            return false;
+        }
+
+        new File(mDir, name).setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    private synchronized void remove(String name)
+    {
+        ensureEntries();
+        Long length = mEntries.remove(name);
+        if (length != null) {
+            mCurBytes -= length;
+        }
+        new File(mDir, name).delete();
+    }
+
+    /**
+     * 第一次使用时扫描目录, 按照最后修改时间排序
+     */
+    private void ensureEntries()
+    {
+        if (mEntries != null) {
+            return;
+        }
+
+        mEntries = new LinkedHashMap<String, Long>(64, 0.75f, true);
+        mCurBytes = 0;
+
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>()
+        {
+            @Override
+            public int compare(File lhs, File rhs)
+            {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+                continue;
+            }
+            mEntries.put(file.getName(), file.length());
+            mCurBytes += file.length();
+        }
+    }
+
+    private void trimToSize()
+    {
+        if (mEntries == null) {
+            return;
+        }
+
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mCurBytes > mMaxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            new File(mDir, entry.getKey()).delete();
+            mCurBytes -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    private static void close(Closeable closeable)
+    {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
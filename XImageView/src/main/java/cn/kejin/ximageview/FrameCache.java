@@ -0,0 +1,213 @@
+package cn.kejin.ximageview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+
+/**
+ * 拖动时的帧缓存
+ * 把上一帧画好的内容保存在两个 view 大小的离屏 bitmap 中 (双缓冲),
+ * 如果这一帧和上一帧只是平移 (缩放和 sample size 都没有变), 就把上一帧平移之后画到另一个 bitmap 上,
+ * 只重新画新露出来的两条区域, 不用每一帧都重新缩放画出所有可见的单元格
+ *
+ * 缩放等情况下调用 invalidate(), 下一帧全部重新画; 有新的 tile 解码完成时调用 invalidate(l, t, r, b),
+ * 下一帧只重新画这个 tile 的区域
+ * 只在 UI 线程中使用, 两个 invalidate() 可以在任意线程中调用
+ */
+class FrameCache
+{
+    /**
+     * 画出一帧的内容, canvas 的坐标和 view 一样, 可能被 clip 成只需要重画的区域
+     */
+    interface Painter
+    {
+        void paint(Canvas canvas);
+    }
+
+    private Bitmap mFront = null;
+    private Bitmap mBack = null;
+    private final Canvas mBackCanvas = new Canvas();
+
+    /**
+     * mFront 对应的 view 在显示的 bitmap 上的位置, 以及缩放的状态
+     */
+    private int mOriginX = 0;
+    private int mOriginY = 0;
+    private long mKey = 0;
+
+    private volatile boolean mIsDirty = true;
+
+    /**
+     * 需要重新画的区域, 显示的 bitmap 的坐标, 在 mDirtyRect 上同步
+     */
+    private final Rect mDirtyRect = new Rect();
+
+    /**
+     * 这一帧需要重新画的区域, view 的坐标
+     */
+    private final Rect mDirty = new Rect();
+
+    private final Rect mStrip = new Rect();
+
+    /**
+     * 下一帧全部重新画
+     */
+    public void invalidate()
+    {
+        mIsDirty = true;
+    }
+
+    /**
+     * 下一帧重新画这个区域
+     * 坐标是在显示的 bitmap 上的, 这样在这之后平移过也不影响
+     */
+    public void invalidate(int left, int top, int right, int bottom)
+    {
+        synchronized (mDirtyRect) {
+            mDirtyRect.union(left, top, right, bottom);
+        }
+    }
+
+    /**
+     * 画出一帧
+     *
+     * @param canvas view 的 canvas
+     * @param width view 的宽
+     * @param height view 的高
+     * @param originX view 在显示的 bitmap 上的位置
+     * @param originY view 在显示的 bitmap 上的位置
+     * @param key 缩放的状态 (显示的 bitmap 的尺寸, sample size 等), 不一样时不能平移
+     * @param painter 画出需要重画的区域
+     * @return 内存不足不能使用帧缓存时返回 false, 这时什么都没有画
+     */
+    public boolean draw(Canvas canvas, int width, int height, int originX, int originY, long key, Painter painter)
+    {
+        if (!ensureBuffers(width, height)) {
+            return false;
+        }
+
+        int dx = mOriginX - originX;
+        int dy = mOriginY - originY;
+        boolean full = mIsDirty || key != mKey || Math.abs(dx) >= width || Math.abs(dy) >= height;
+
+        /**
+         * 先清除标记, 画的过程中解码完成的 tile 会再次标记, 下一帧重新画
+         */
+        mIsDirty = false;
+        mKey = key;
+        mOriginX = originX;
+        mOriginY = originY;
+
+        synchronized (mDirtyRect) {
+            mDirty.set(mDirtyRect);
+            mDirtyRect.setEmpty();
+        }
+        mDirty.offset(-originX, -originY);
+        boolean dirty = mDirty.intersect(0, 0, width, height);
+
+        if (full || dirty || dx != 0 || dy != 0) {
+            mBackCanvas.setBitmap(mBack);
+            mBackCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+
+            if (full) {
+                painter.paint(mBackCanvas);
+            }
+            else {
+                mBackCanvas.drawBitmap(mFront, dx, dy, null);
+
+                /**
+                 * 左右新露出来的一条, 和上下新露出来的一条 (不包括左右的那一条)
+                 */
+                int left = dx > 0 ? 0 : width + dx;
+                int right = dx > 0 ? dx : width;
+                paintStrip(painter, left, 0, right, height);
+
+                int top = dy > 0 ? 0 : height + dy;
+                int bottom = dy > 0 ? dy : height;
+                paintStrip(painter, dx > 0 ? dx : 0, top, dx > 0 ? width : width + dx, bottom);
+
+                /**
+                 * 新解码完成的 tile 的区域
+                 */
+                if (dirty) {
+                    paintStrip(painter, mDirty.left, mDirty.top, mDirty.right, mDirty.bottom);
+                }
+            }
+
+            Bitmap front = mFront;
+            mFront = mBack;
+            mBack = front;
+        }
+
+        canvas.drawBitmap(mFront, 0, 0, null);
+        return true;
+    }
+
+    private void paintStrip(Painter painter, int left, int top, int right, int bottom)
+    {
+        mStrip.set(left, top, right, bottom);
+        if (mStrip.isEmpty()) {
+            return;
+        }
+
+        mBackCanvas.save();
+        mBackCanvas.clipRect(mStrip);
+        mBackCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        painter.paint(mBackCanvas);
+        mBackCanvas.restore();
+    }
+
+    private boolean ensureBuffers(int width, int height)
+    {
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+
+        if (mFront != null && mFront.getWidth() == width && mFront.getHeight() == height) {
+            return true;
+        }
+
+        release();
+        try {
+            /**
+             * 图片以外的区域要透明, 显示出 view 的背景
+             */
+            mFront = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mBack = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        catch (OutOfMemoryError e) {
+            release();
+            return false;
+        }
+
+        mIsDirty = true;
+        return true;
+    }
+
+    /**
+     * 释放两个离屏 bitmap, 下一次画的时候重新创建
+     *
+     * @return 释放的字节数
+     */
+    public long release()
+    {
+        long bytes = 0;
+        if (mFront != null) {
+            bytes += mFront.getByteCount();
+            mFront.recycle();
+            mFront = null;
+        }
+
+        if (mBack != null) {
+            bytes += mBack.getByteCount();
+            mBack.recycle();
+            mBack = null;
+        }
+
+        mBackCanvas.setBitmap(null);
+        mIsDirty = true;
+        return bytes;
+    }
+}
@@ -194,6 +194,9 @@ public class GestureManager extends
     private void stopFling()
     {
         if (mValueAnimator != null) {
+            if (mValueAnimator.isRunning() && mBM != null) {
+                mBM.cancelFlingPrefetch();
+            }
             mValueAnimator.cancel();
         }
     }
@@ -208,6 +211,15 @@ public class GestureManager extends
         final float velocity = (float) Math.hypot(velocityX, velocityY);
         final long duration = getSplineFlingDuration(velocity);
 
+        /**
+         * 整个滑动的距离在开始时就已经确定, 提前预加载路径上的单元格
+         */
+        if (mBM != null) {
+            int totalX = (int) (-getSplineFlingDistance(velocityX) * fx);
+            int totalY = (int) (-getSplineFlingDistance(velocityY) * fy);
+            mBM.prefetchFling(totalX, totalY);
+        }
+
         mValueAnimator = ValueAnimator.ofFloat(1f, 0);
         mValueAnimator.setInterpolator(new LinearInterpolator());
         mValueAnimator.setDuration(duration);
@@ -0,0 +1,321 @@
+package cn.kejin.ximageview;
+
+/**
+ * 单元格的几何计算
+ * 只使用基本类型, 结果写入调用者传入的数组, 画图和拖动时每一帧都会调用, 不分配任何对象
+ *
+ * 坐标系:
+ * 原图: 图片真实的像素, 单元格是 tileSize x tileSize
+ * 显示的 bitmap: 缩放之后显示出来的图片, 左上角为 (0, 0)
+ * 真实的 bitmap: 原图按照 sample size 解码出来的图片
+ */
+class GridGeometry
+{
+    /**
+     * 结果数组中的下标, 和 Rect 的顺序一样
+     */
+    public final static int LEFT = 0;
+    public final static int TOP = 1;
+    public final static int RIGHT = 2;
+    public final static int BOTTOM = 3;
+
+    private int mImageWidth = 0;
+    private int mImageHeight = 0;
+
+    private int mTileSize = 1;
+
+    /**
+     * 行数和列数
+     */
+    private int mRows = 0;
+    private int mCols = 0;
+
+    /**
+     * 设置原图的尺寸和单元格的大小, 并计算行数和列数
+     */
+    public void setImage(int width, int height, int tileSize)
+    {
+        mImageWidth = Math.max(0, width);
+        mImageHeight = Math.max(0, height);
+        mTileSize = Math.max(1, tileSize);
+
+        mRows = mImageHeight / mTileSize + (mImageHeight % mTileSize == 0 ? 0 : 1);
+        mCols = mImageWidth / mTileSize + (mImageWidth % mTileSize == 0 ? 0 : 1);
+    }
+
+    public int getRows()
+    {
+        return mRows;
+    }
+
+    public int getCols()
+    {
+        return mCols;
+    }
+
+    public int getTileSize()
+    {
+        return mTileSize;
+    }
+
+    public boolean isValidUnit(int n, int m)
+    {
+        return n >= 0 && n < mRows && m >= 0 && m < mCols;
+    }
+
+    /**
+     * 计算单元格在原图中的区域
+     *
+     * @param out 结果 {left, top, right, bottom}
+     * @return 单元格不存在或者为空时返回 false
+     */
+    public boolean getUnitRect(int n, int m, int[] out)
+    {
+        if (!isValidUnit(n, m)) {
+            return false;
+        }
+
+        int left = Math.min(mImageWidth, m * mTileSize);
+        int right = Math.min(mImageWidth, left + mTileSize);
+
+        int top = Math.min(mImageHeight, n * mTileSize);
+        int bottom = Math.min(mImageHeight, top + mTileSize);
+
+        out[LEFT] = left;
+        out[TOP] = top;
+        out[RIGHT] = right;
+        out[BOTTOM] = bottom;
+
+        return left != right && top != bottom;
+    }
+
+    /**
+     * 计算单元格在显示的 bitmap 上的区域
+     *
+     * @param showWidth 显示的 bitmap 的宽
+     * @param showHeight 显示的 bitmap 的高
+     * @param out 结果 {left, top, right, bottom}
+     */
+    public void getShowUnitRect(int n, int m, float showWidth, float showHeight, int[] out)
+    {
+        /**
+         * 单元格在显示的 bitmap 上的边长
+         */
+        float ts = mImageHeight == 0 ? 0 : mTileSize * showHeight / mImageHeight;
+
+        float left = Math.min(m * ts, showWidth);
+        float right = Math.min(left + ts, showWidth);
+
+        float top = Math.min(n * ts, showHeight);
+        float bottom = Math.min(top + ts, showHeight);
+
+        out[LEFT] = (int) left;
+        out[TOP] = (int) top;
+        out[RIGHT] = (int) right;
+        out[BOTTOM] = (int) bottom;
+    }
+
+    /**
+     * 计算出可见的单元格
+     *
+     * @param showWidth 显示的 bitmap 的宽
+     * @param showHeight 显示的 bitmap 的高
+     * @param viewLeft view 在显示的 bitmap 坐标系中的区域
+     * @param viewTop view 在显示的 bitmap 坐标系中的区域
+     * @param viewRight view 在显示的 bitmap 坐标系中的区域
+     * @param viewBottom view 在显示的 bitmap 坐标系中的区域
+     * @param sampleSize 当前的 sample size
+     * @param out 结果 {left=sm, top=sn, right=em, bottom=en}, 包括 em 和 en
+     */
+    public void getVisibleGrid(float showWidth, float showHeight,
+                               int viewLeft, int viewTop, int viewRight, int viewBottom,
+                               int sampleSize, int[] out)
+    {
+        /**
+         * 单元格在真实bitmap 上的边长
+         */
+        float ts = mTileSize * 1f / sampleSize;
+
+        /**
+         * 可见区域的显示出来的bitmap rect
+         */
+        int left = Math.max(0, viewLeft);
+        int right = (int) Math.min(showWidth, viewRight);
+        int top = Math.max(0, viewTop);
+        int bottom = (int) Math.min(showHeight, viewBottom);
+
+        /**
+         * 转换为真实bitmap 的 rect
+         */
+        float ratio = showHeight == 0 ? 0 : mImageHeight * 1f / (sampleSize * showHeight);
+        float rLeft = left * ratio;
+        float rTop = top * ratio;
+        float rWidth = (right - left) * ratio;
+        float rHeight = (bottom - top) * ratio;
+
+        /**
+         * 根据这个rect , 算出所涉及到的单元格
+         */
+        int sm = (int) (rLeft / ts);
+        int sn = (int) (rTop / ts);
+
+        int em = (int) (sm + Math.ceil(rWidth / ts));
+        int en = (int) (sn + Math.ceil(rHeight / ts));
+
+        out[LEFT] = sm;
+        out[TOP] = sn;
+        out[RIGHT] = em > mCols ? mCols : em;
+        out[BOTTOM] = en > mRows ? mRows : en;
+    }
+
+    /**
+     * 计算显示的 bitmap 对应的 sample size
+     * 如果是宽图, 则以宽为标准, 否则以高为标准
+     *
+     * @param iw 原图的宽
+     * @param ih 原图的高
+     * @param showWidth 显示的 bitmap 的宽
+     * @param showHeight 显示的 bitmap 的高
+     */
+    public static int getSampleSize(int iw, int ih, float showWidth, float showHeight)
+    {
+        int bw = (int) showWidth;
+        int bh = (int) showHeight;
+        if (bw * bh == 0 || ih == 0) {
+            return 1;
+        }
+
+        int width = (int) (iw * 1.0f / ih * bh);
+        int sampleSize = (width > bw) ? computeSampleSize(iw / bw) : computeSampleSize(ih / bh);
+        if (sampleSize < 1) {
+            sampleSize = 1;
+        }
+
+        return sampleSize;
+    }
+
+    /**
+     * 计算初始显示 (缩略图) 时的 sample size, 和 BitmapManager.updateViewRect() 的计算一样:
+     * 图片等比缩小到刚好放进 view, 比 view 小时不放大
+     *
+     * @param iw 原图的宽
+     * @param ih 原图的高
+     * @param vw view 的宽
+     * @param vh view 的高
+     */
+    public static int getInitSampleSize(int iw, int ih, int vw, int vh)
+    {
+        if (iw <= 0 || ih <= 0 || vw <= 0 || vh <= 0) {
+            return 1;
+        }
+
+        int width = (int) (iw * 1.0f / ih * vh);
+        float ratio = (width > vw) ? (iw * 1f / vw) : (ih * 1f / vh);
+        ratio = ratio < 1 ? 1f : ratio;
+
+        return getSampleSize(iw, ih, (int) (iw / ratio), (int) (ih / ratio));
+    }
+
+    /**
+     * 精确分辨率解码时, 每两个 2^n 之间再分成 SCALE_STEPS 级 (1/4 个八度)
+     * 这时的 sample size 低 16 位是解码时的 inSampleSize (2^n),
+     * 高位是解码之后再缩小的级数 (0 ~ SCALE_STEPS - 1), 实际的采样率为 2^n * 2^(step / SCALE_STEPS)
+     * 级数为 0 时和普通的 sample size 一样
+     */
+    public final static int SCALE_STEPS = 4;
+    private final static int SCALE_SHIFT = 16;
+    private final static int DECODE_MASK = (1 << SCALE_SHIFT) - 1;
+
+    /**
+     * 计算精确分辨率解码时的 sample size, 选择不大于实际比率的一级, 保证解码出来的不会比显示的更模糊
+     *
+     * @param iw 原图的宽
+     * @param ih 原图的高
+     * @param showWidth 显示的 bitmap 的宽
+     * @param showHeight 显示的 bitmap 的高
+     */
+    public static int getExactSampleSize(int iw, int ih, float showWidth, float showHeight)
+    {
+        int bw = (int) showWidth;
+        int bh = (int) showHeight;
+        if (bw * bh == 0 || ih == 0) {
+            return 1;
+        }
+
+        int width = (int) (iw * 1.0f / ih * bh);
+        float ratio = (width > bw) ? (iw * 1f / bw) : (ih * 1f / bh);
+        if (ratio <= 1) {
+            return 1;
+        }
+
+        int sampleSize = computeSampleSize((int) ratio);
+        int step = (int) (SCALE_STEPS * Math.log(ratio / sampleSize) / Math.log(2));
+        step = Math.max(0, Math.min(SCALE_STEPS - 1, step));
+
+        return sampleSize | (step << SCALE_SHIFT);
+    }
+
+    /**
+     * @return 解码时使用的 inSampleSize
+     */
+    public static int getDecodeSampleSize(int sampleSize)
+    {
+        return Math.max(1, sampleSize & DECODE_MASK);
+    }
+
+    /**
+     * @return 解码之后再缩小的级数
+     */
+    public static int getScaleStep(int sampleSize)
+    {
+        return sampleSize >>> SCALE_SHIFT;
+    }
+
+    /**
+     * @return 解码之后再缩小的比例, 级数为 0 时为 1
+     */
+    public static float getDecodeScale(int sampleSize)
+    {
+        int step = getScaleStep(sampleSize);
+        return step == 0 ? 1f : (float) Math.pow(2, -step / (double) SCALE_STEPS);
+    }
+
+    /**
+     * ThumbType.AUTO 时, 缩略图解码时的 inSampleSize 不小于这个值才一次解码整张图片
+     * inSampleSize 越大, 每一个单元格的解码中重新解析压缩数据所占的比例越大, 整张图片解码出来也越小
+     */
+    public final static int SINGLE_PASS_MIN_SAMPLE_SIZE = 4;
+
+    /**
+     * 比较的是解码时的 inSampleSize, 精确分辨率时的 sample size 包含了缩小的级数, 不能直接比较
+     *
+     * @param thumbSampleSize 缩略图的 sample size
+     * @return ThumbType.AUTO 时是否一次解码整张图片
+     */
+    public static boolean isSinglePassThumbSize(int thumbSampleSize)
+    {
+        return getDecodeSampleSize(thumbSampleSize) >= SINGLE_PASS_MIN_SAMPLE_SIZE;
+    }
+
+    /**
+     * 解码时的 inSampleSize 加倍, 缩小的级数不变
+     */
+    public static int doubleSampleSize(int sampleSize)
+    {
+        return (getDecodeSampleSize(sampleSize) * 2) | (sampleSize & ~DECODE_MASK);
+    }
+
+    /**
+     * 根据比率来获得合适的采样率, 因为采样率都是以 2^n 来定的
+     */
+    public static int computeSampleSize(int size)
+    {
+        int sample = 1;
+        while ((size / 2) != 0) {
+            size /= 2;
+            sample *= 2;
+        }
+
+        return sample;
+    }
+}
@@ -5,6 +5,8 @@ import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.support.annotation.NonNull;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.InputStream;
 
 /**
@@ -56,10 +58,32 @@ public interface IBitmapManager
 
     /**
      * @param is 设置输入流
-     * @param config config
+     * @param config config, null 时根据图片自动选择
      */
     void setInputStream(InputStream is, Bitmap.Config config);
 
+    /**
+     * @param is 设置输入流
+     * @param config config, null 时根据图片自动选择
+     * @param sourceKey 图片源的唯一标识, 作为磁盘缓存的 key, 为 null 时不使用磁盘缓存
+     */
+    void setInputStream(InputStream is, Bitmap.Config config, String sourceKey);
+
+    /**
+     * 直接通过文件路径打开, decoder 按需随机读取文件, 不需要把整个文件读到内存中
+     * @param file 文件
+     * @param config config, null 时根据图片自动选择
+     * @param sourceKey 图片源的唯一标识, 作为磁盘缓存的 key, 为 null 时不使用磁盘缓存
+     */
+    void setFile(File file, Bitmap.Config config, String sourceKey);
+
+    /**
+     * 通过 FileDescriptor 打开, 由调用者负责关闭
+     * @param fd FileDescriptor
+     * @param config config, null 时根据图片自动选择
+     */
+    void setFileDescriptor(FileDescriptor fd, Bitmap.Config config);
+
 
     /**
      * 获取图片真实的
@@ -185,6 +209,113 @@ public interface IBitmapManager
      */
     void updateSampleSize();
 
+    /**
+     * 开始惯性滑动, 预加载滑动路径上将会进入可见区域的单元格
+     * @param dx 总共会滑动的距离, 和 move() 的方向一样
+     * @param dy 总共会滑动的距离, 和 move() 的方向一样
+     */
+    void prefetchFling(int dx, int dy);
+
+    /**
+     * 惯性滑动被打断, 取消还没有开始的预加载
+     */
+    void cancelFlingPrefetch();
+
+    /**
+     * 设置解码线程的数量, 每个线程都会打开一个独立的 decoder, 在下一次设置图片时生效
+     * @param count 线程数量, &lt;= 0 时使用默认值 (和CPU核数相关)
+     */
+    void setDecodeWorkerCount(int count);
+
+    /**
+     * 拖动时的帧缓存, 把上一帧保存在 view 大小的离屏 bitmap 中, 只是平移时只画新露出来的区域
+     * 在 UI 线程中调用
+     * @param enabled 是否开启
+     */
+    void setFrameCacheEnabled(boolean enabled);
+
+    /**
+     * 按照显示的分辨率解码, sample size 不再只是 2^n, 每两个 2^n 之间再分成 4 级,
+     * 按照 2^n 解码之后在解码线程中缩小, 在下一次设置图片时生效
+     * @param enabled 是否开启
+     */
+    void setExactResolutionEnabled(boolean enabled);
+
+    /**
+     * 使用整个应用共享的调度器, 所有使用共享调度器的 view 一起使用固定数量的解码线程
+     * @param enabled 是否使用
+     */
+    void setSharedSchedulerEnabled(boolean enabled);
+
+    /**
+     * view 是否在屏幕上, 在屏幕上的 view 的单元格优先解码
+     * @param onScreen 是否在屏幕上
+     */
+    void setOnScreen(boolean onScreen);
+
+    /**
+     * 设置单元格的大小, 以原图的像素为单位
+     * @param size 单元格的边长, &lt;= 0 时使用默认值
+     */
+    void setTileSize(int size);
+
+    /**
+     * 设置 tile 缓存的大小, 超出时淘汰最久没有画过的 tile
+     * @param bytes 字节数, &lt;= 0 时使用默认值
+     */
+    void setTileCacheSize(long bytes);
+
+    /**
+     * 根据系统的内存等级分阶段释放内存, 在 UI 线程中调用
+     * 1: 帧缓存, 没有画过的预加载 tile 和复用池, 2: 压缩的内存缓存和其他 sample size 的 tile, 3: 缩小缩略图
+     * @param level ComponentCallbacks2 的 TRIM_MEMORY_* 等级
+     * @return 释放的字节数
+     */
+    long trimMemory(int level);
+
+    /**
+     * @return 单元格 bitmap 的复用池, 可以用来查看复用的命中次数
+     */
+    BitmapPool getBitmapPool();
+
+    /**
+     * 开启或者关闭压缩的内存缓存, 开启后被 tile 缓存淘汰的 tile 会压缩保存在内存中,
+     * 再次需要时直接解压, 不用重新解码
+     * @param enabled 是否开启
+     */
+    void setCompressedTileCacheEnabled(boolean enabled);
+
+    /**
+     * 设置压缩的内存缓存的压缩格式, 默认为 PNG (无损)
+     * @param format 压缩格式, null 时使用默认值
+     * @param quality 有损压缩的质量
+     */
+    void setCompressedTileCacheFormat(Bitmap.CompressFormat format, int quality);
+
+    /**
+     * 设置压缩的内存缓存的大小 (压缩之后的字节数), 超出时淘汰最久没有使用的
+     * @param bytes 字节数, &lt;= 0 时使用默认值
+     */
+    void setCompressedTileCacheSize(long bytes);
+
+    /**
+     * @return 压缩的内存缓存, 可以用来查看避免了多少次重新解码
+     */
+    CompressedTileCache getCompressedTileCache();
+
+    /**
+     * 开启或者关闭磁盘缓存, 开启后解码过的缩略图和 tile 会保存在 cache 目录中,
+     * 下一次打开同一张图片时直接读取
+     * @param enabled 是否开启
+     */
+    void setDiskCacheEnabled(boolean enabled);
+
+    /**
+     * 设置磁盘缓存的大小, 超出时淘汰最久没有使用的文件
+     * @param bytes 字节数, &lt;= 0 时使用默认值
+     */
+    void setDiskCacheSize(long bytes);
+
     /**
      * 当这个BitmapManager 被丢弃时，必须要执行这个 destroy(), 确保线程已经退出
      */
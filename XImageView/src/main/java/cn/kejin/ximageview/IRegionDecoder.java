@@ -0,0 +1,32 @@
+package cn.kejin.ximageview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+
+/**
+ * 按区域解码图片的接口, 所有的方法都可以在多个解码线程中同时调用
+ */
+interface IRegionDecoder
+{
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * 解码出一块 bitmap
+     *
+     * @param rect 原图中的区域
+     * @param options options, 支持 inSampleSize 和 inBitmap
+     * @return bitmap, 如果已经被回收或者解码失败返回 null,
+     *         如果 options.inBitmap 不能复用, 也会返回 null, 由调用者去掉 inBitmap 之后重试
+     */
+    Bitmap decodeRegion(Rect rect, BitmapFactory.Options options);
+
+    boolean isRecycled();
+
+    /**
+     * 回收, 正在解码中的区域会在解码结束后失效
+     */
+    void recycle();
+}
@@ -124,6 +124,65 @@ public interface IXImageView
         }
     }
 
+    /**
+     * 初始缩略图的解码方式
+     * 此处和 attrs.xml: thumbType 的value 保持一致
+     */
+    enum ThumbType {
+        /**
+         * （默认为这种）
+         * 缩略图的 sample size 较大时使用 SINGLE_PASS, 否则使用 PER_CELL,
+         * 开启了磁盘缓存时使用 PER_CELL (缓存的是每一个单元格)
+         */
+        AUTO(1),
+
+        /**
+         * 每一个单元格单独解码, 多个解码线程同时进行
+         */
+        PER_CELL(2),
+
+        /**
+         * 以缩略图的 sample size 把整张图片解码一次, 再切成每一个单元格
+         * 不用为每一个单元格重新解析一次压缩数据
+         */
+        SINGLE_PASS(4);
+
+        public int value = 1;
+        ThumbType(int v) { value = v; }
+
+        public static ThumbType valueOf(int value) {
+            if (value == PER_CELL.value) {
+                return PER_CELL;
+            }
+
+            if (value == SINGLE_PASS.value) {
+                return SINGLE_PASS;
+            }
+
+            return AUTO;
+        }
+    }
+
+    /**
+     * tile 的来源, OnMetricsListener.onTileDecoded() 中报告
+     */
+    enum TileSource {
+        /**
+         * 由 decoder 从图片源解码
+         */
+        DECODER,
+
+        /**
+         * 从磁盘缓存中读取
+         */
+        DISK_CACHE,
+
+        /**
+         * 从压缩的内存缓存中解压
+         */
+        MEMORY_CACHE
+    }
+
     /**
      * @return XImageView 的实例
      */
@@ -166,6 +225,11 @@ public interface IXImageView
      */
     void callPostInvalidate();
 
+    /**
+     * 调用 postInvalidate 方法, 只重新画 view 中的这个区域
+     */
+    void callPostInvalidate(int left, int top, int right, int bottom);
+
 
 //    /**
 //     * @return 解码选项
@@ -192,6 +256,16 @@ public interface IXImageView
      * @return 双击缩放类型
      */
     DoubleType getDoubleType();
+
+    /**
+     * @return 初始缩略图的解码方式
+     */
+    ThumbType getThumbType();
+
+    /**
+     * @return 性能统计的监听, 没有时返回 null
+     */
+    XImageView.OnMetricsListener getMetricsListener();
 //
 //    /**
 //     * @return 是否允许弹性缩放
@@ -0,0 +1,261 @@
+package cn.kejin.ximageview;
+
+import android.graphics.Bitmap;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 读取图片文件头, 判断图片是否有透明通道, 用来自动选择 Bitmap.Config:
+ * 不透明的图片使用 RGB_565, 有透明通道或者不能确定的使用 ARGB_8888
+ *
+ * JPEG: 没有透明通道
+ * PNG: IHDR 中的 color type 带 alpha, 或者在 IDAT 之前有 tRNS
+ * WebP: VP8 (有损) 没有透明通道, VP8L 和 VP8X 看头部中的 alpha 标记
+ */
+class ImageHeader
+{
+    /**
+     * 最多读取的文件头长度, PNG 的 tRNS 在 PLTE 之后, 一般都在前几 KB 中
+     */
+    public final static int MAX_HEADER_SIZE = 64 * 1024;
+
+    public final static int ALPHA_UNKNOWN = -1;
+    public final static int OPAQUE = 0;
+    public final static int ALPHA = 1;
+
+    private final static byte[] PNG_SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'
+    };
+
+    /**
+     * 判断图片是否有透明通道
+     *
+     * @param data 文件头
+     * @param length data 中有效的长度
+     * @return OPAQUE, ALPHA 或者 ALPHA_UNKNOWN
+     */
+    public static int getAlpha(byte[] data, int length)
+    {
+        if (data == null || length < 12) {
+            return ALPHA_UNKNOWN;
+        }
+
+        if ((data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8 && (data[2] & 0xFF) == 0xFF) {
+            return OPAQUE;
+        }
+
+        if (startsWith(data, length, 0, PNG_SIGNATURE)) {
+            return getPngAlpha(data, length);
+        }
+
+        if (isTag(data, length, 0, "RIFF") && isTag(data, length, 8, "WEBP")) {
+            return getWebpAlpha(data, length);
+        }
+
+        return ALPHA_UNKNOWN;
+    }
+
+    /**
+     * 根据是否有透明通道选择最小的 config
+     */
+    public static Bitmap.Config getConfig(int alpha)
+    {
+        return alpha == OPAQUE ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    private static int getPngAlpha(byte[] data, int length)
+    {
+        /**
+         * 第一个 chunk 必须是 IHDR, color type 在第 25 个字节
+         * 4: 灰度 + alpha, 6: RGBA
+         */
+        if (length < 26 || !isTag(data, length, 12, "IHDR")) {
+            return ALPHA_UNKNOWN;
+        }
+
+        int colorType = data[25] & 0xFF;
+        if (colorType == 4 || colorType == 6) {
+            return ALPHA;
+        }
+
+        /**
+         * 其他的 color type 只有在 IDAT 之前有 tRNS 时才有透明
+         */
+        int offset = 8;
+        while (offset + 8 <= length) {
+            long chunkLength = readInt(data, offset) & 0xFFFFFFFFL;
+            if (isTag(data, length, offset + 4, "tRNS")) {
+                return ALPHA;
+            }
+            if (isTag(data, length, offset + 4, "IDAT") || isTag(data, length, offset + 4, "IEND")) {
+                return OPAQUE;
+            }
+
+            /**
+             * length + type + data + crc
+             */
+            long next = offset + 12 + chunkLength;
+            if (next > Integer.MAX_VALUE) {
+                break;
+            }
+            offset = (int) next;
+        }
+
+        return ALPHA_UNKNOWN;
+    }
+
+    private static int getWebpAlpha(byte[] data, int length)
+    {
+        if (isTag(data, length, 12, "VP8 ")) {
+            return OPAQUE;
+        }
+
+        /**
+         * VP8L: 签名 0x2F 之后 14 位宽, 14 位高, 1 位 alpha_is_used (小端)
+         */
+        if (isTag(data, length, 12, "VP8L")) {
+            if (length < 25 || (data[20] & 0xFF) != 0x2F) {
+                return ALPHA_UNKNOWN;
+            }
+            int bits = (data[21] & 0xFF) | (data[22] & 0xFF) << 8 | (data[23] & 0xFF) << 16 | (data[24] & 0xFF) << 24;
+            return ((bits >>> 28) & 1) != 0 ? ALPHA : OPAQUE;
+        }
+
+        /**
+         * VP8X: flags 中的 alpha 标记
+         */
+        if (isTag(data, length, 12, "VP8X")) {
+            if (length < 21) {
+                return ALPHA_UNKNOWN;
+            }
+            return (data[20] & 0x10) != 0 ? ALPHA : OPAQUE;
+        }
+
+        return ALPHA_UNKNOWN;
+    }
+
+    private static boolean startsWith(byte[] data, int length, int offset, byte[] prefix)
+    {
+        if (offset + prefix.length > length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; ++i) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isTag(byte[] data, int length, int offset, String tag)
+    {
+        if (offset < 0 || offset + tag.length() > length) {
+            return false;
+        }
+
+        for (int i = 0; i < tag.length(); ++i) {
+            if (data[offset + i] != (byte) tag.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * 大端的 int
+     */
+    private static int readInt(byte[] data, int offset)
+    {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16 |
+                (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * 读取输入流的文件头, 读取之后会 reset, 不影响之后的解码
+     *
+     * @param is 必须支持 mark()
+     */
+    public static Bitmap.Config getConfig(InputStream is)
+    {
+        byte[] data = new byte[MAX_HEADER_SIZE];
+        int length = 0;
+        try {
+            is.mark(MAX_HEADER_SIZE);
+            int read;
+            while (length < data.length && (read = is.read(data, length, data.length - length)) != -1) {
+                length += read;
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        finally {
+            try {
+                is.reset();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return getConfig(getAlpha(data, length));
+    }
+
+    /**
+     * 读取文件的文件头
+     */
+    public static Bitmap.Config getConfig(String path)
+    {
+        byte[] data = new byte[MAX_HEADER_SIZE];
+        int length = 0;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(path, "r");
+            length = raf.read(data);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        return getConfig(getAlpha(data, length));
+    }
+
+    /**
+     * 读取 FileDescriptor 的文件头, 使用绝对位置读取, 不会改变 fd 的读取位置
+     * 不会关闭 fd
+     */
+    public static Bitmap.Config getConfig(FileDescriptor fd)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        try {
+            FileChannel channel = new FileInputStream(fd).getChannel();
+            while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+                // read header
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return getConfig(getAlpha(buffer.array(), buffer.position()));
+    }
+}
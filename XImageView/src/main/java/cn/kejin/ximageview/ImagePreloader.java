@@ -0,0 +1,436 @@
+package cn.kejin.ximageview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 图片预加载
+ * 在 XImageView 显示之前 (比如 ViewPager 的下一页), 提前打开 decoder, 读取尺寸,
+ * 并按照给定的 view 尺寸解码初始的缩略图网格
+ * 之后任意一个 XImageView 用同一个图片源的标识 setImage() 时, 直接接管预加载的结果
+ *
+ * 同一个进程中共享, 最多保留 MAX_ENTRIES 个, 超出时释放最早的
+ */
+class ImagePreloader
+{
+    private final static boolean DEBUG = IXImageView.DEBUG;
+    private final static String TAG = "ImagePreloader";
+
+    private final static String THREAD_NAME = "XImagePreloader";
+
+    /**
+     * 最多保留的预加载数量, 每一个都持有一个 decoder 和一整套缩略图
+     */
+    public final static int MAX_ENTRIES = 3;
+
+    /**
+     * 图片源
+     */
+    interface Source
+    {
+        IRegionDecoder open() throws IOException;
+
+        /**
+         * 读取文件头, 自动选择 config, 在 open() 之前调用
+         */
+        Bitmap.Config readConfig();
+
+        /**
+         * 预加载在打开之前被取消时调用
+         */
+        void close();
+    }
+
+    /**
+     * 一个预加载的结果
+     * 被 take() 取走之后由 BitmapManager 负责, 不再被取走就由 ImagePreloader 释放
+     */
+    static class Entry
+    {
+        final String mSourceKey;
+
+        /**
+         * 预加载时要求的 config, null 表示自动选择
+         */
+        final Bitmap.Config mConfig;
+        final int mTileSize;
+        final int mViewWidth;
+        final int mViewHeight;
+
+        private IRegionDecoder mDecoder = null;
+
+        /**
+         * 实际使用的 config
+         */
+        private Bitmap.Config mResolvedConfig = null;
+
+        /**
+         * 缩略图的 sample size 和网格, [行][列]
+         */
+        private int mThumbSampleSize = 0;
+        private Bitmap[][] mThumbs = null;
+
+        private boolean mIsLoaded = false;
+        private boolean mIsReleased = false;
+
+        private Entry(String sourceKey, Bitmap.Config config, int tileSize, int vw, int vh)
+        {
+            mSourceKey = sourceKey;
+            mConfig = config;
+            mTileSize = tileSize;
+            mViewWidth = vw;
+            mViewHeight = vh;
+        }
+
+        public synchronized boolean isLoaded()
+        {
+            return mIsLoaded;
+        }
+
+        /**
+         * @return 解码缩略图时实际使用的 config
+         */
+        public synchronized Bitmap.Config getConfig()
+        {
+            return mResolvedConfig;
+        }
+
+        /**
+         * 等待预加载完成, 在 loading 线程中调用
+         */
+        public synchronized void await()
+        {
+            while (!mIsLoaded && !mIsReleased) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * 取出 decoder, 之后由调用者负责回收
+         *
+         * @return 没有加载完成或者打开失败时返回 null
+         */
+        public synchronized IRegionDecoder takeDecoder()
+        {
+            IRegionDecoder decoder = mDecoder;
+            mDecoder = null;
+            return decoder;
+        }
+
+        /**
+         * 取出缩略图, 只有行列数和 sample size 都一致时才能使用, 之后由调用者负责回收
+         *
+         * @return 不一致时返回 null
+         */
+        public synchronized Bitmap[][] takeThumbs(int rows, int cols, int thumbSampleSize)
+        {
+            Bitmap[][] thumbs = mThumbs;
+            if (thumbs == null || thumbSampleSize != mThumbSampleSize ||
+                    thumbs.length != rows || (rows > 0 && thumbs[0].length != cols)) {
+                return null;
+            }
+
+            mThumbs = null;
+            return thumbs;
+        }
+
+        private synchronized void setResult(IRegionDecoder decoder, Bitmap.Config config,
+                                            int thumbSampleSize, Bitmap[][] thumbs)
+        {
+            mDecoder = decoder;
+            mResolvedConfig = config;
+            mThumbSampleSize = thumbSampleSize;
+            mThumbs = thumbs;
+            mIsLoaded = true;
+            if (mIsReleased) {
+                release();
+            }
+            notifyAll();
+        }
+
+        /**
+         * 释放还没有被取走的 decoder 和缩略图, 还在加载的会在加载完成后释放
+         */
+        public synchronized void release()
+        {
+            mIsReleased = true;
+            if (mDecoder != null) {
+                mDecoder.recycle();
+                mDecoder = null;
+            }
+
+            if (mThumbs != null) {
+                for (Bitmap[] row : mThumbs) {
+                    for (Bitmap bitmap : row) {
+                        if (bitmap != null) {
+                            bitmap.recycle();
+                        }
+                    }
+                }
+                mThumbs = null;
+            }
+            notifyAll();
+        }
+
+        private synchronized boolean isReleased()
+        {
+            return mIsReleased;
+        }
+    }
+
+    private static HandlerThread sThread = null;
+    private static Handler sHandler = null;
+
+    /**
+     * 图片源的标识和预加载的结果, 按照添加的顺序
+     */
+    private final static LinkedHashMap<String, Entry> sEntries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * 预加载一张图片
+     *
+     * @param sourceKey 图片源的标识, 和之后 setImage() 的标识一样
+     * @param source 图片源
+     * @param config config, null 时根据图片自动选择
+     * @param tileSize 单元格的大小, &lt;= 0 时使用默认值
+     * @param vw 将要显示这张图片的 view 的宽
+     * @param vh 将要显示这张图片的 view 的高
+     */
+    public static void preload(String sourceKey, final Source source, Bitmap.Config config,
+                               int tileSize, int vw, int vh)
+    {
+        if (sourceKey == null || source == null) {
+            return;
+        }
+
+        tileSize = tileSize <= 0 ? BitmapManager.DEFAULT_TILE_SIZE : tileSize;
+
+        final Entry entry = new Entry(sourceKey, config, tileSize, vw, vh);
+        synchronized (sEntries) {
+            Entry old = sEntries.get(sourceKey);
+            if (old != null && old.mConfig == config && old.mTileSize == tileSize &&
+                    old.mViewWidth == vw && old.mViewHeight == vh) {
+                return;
+            }
+
+            remove(sourceKey);
+            sEntries.put(sourceKey, entry);
+            trimToSize();
+
+            if (sThread == null) {
+                sThread = new HandlerThread(THREAD_NAME);
+                sThread.start();
+                sHandler = new Handler(sThread.getLooper());
+            }
+        }
+
+        sHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                load(entry, source);
+            }
+        });
+    }
+
+    /**
+     * 取走一个预加载, 之后由调用者负责
+     * config 和单元格的大小不一致时不能使用, 仍然保留
+     *
+     * @return 没有时返回 null, 返回的 Entry 可能还在加载中
+     */
+    public static Entry take(String sourceKey, Bitmap.Config config, int tileSize)
+    {
+        if (sourceKey == null) {
+            return null;
+        }
+
+        synchronized (sEntries) {
+            Entry entry = sEntries.get(sourceKey);
+            if (entry == null || entry.mConfig != config || entry.mTileSize != tileSize) {
+                return null;
+            }
+
+            sEntries.remove(sourceKey);
+            return entry;
+        }
+    }
+
+    /**
+     * 取消并释放一个预加载
+     */
+    public static void remove(String sourceKey)
+    {
+        synchronized (sEntries) {
+            Entry entry = sEntries.remove(sourceKey);
+            if (entry != null) {
+                entry.release();
+            }
+        }
+    }
+
+    /**
+     * 释放所有的预加载
+     */
+    public static void clear()
+    {
+        synchronized (sEntries) {
+            for (Entry entry : sEntries.values()) {
+                entry.release();
+            }
+            sEntries.clear();
+        }
+    }
+
+    private static void trimToSize()
+    {
+        Iterator<Map.Entry<String, Entry>> iterator = sEntries.entrySet().iterator();
+        while (sEntries.size() > MAX_ENTRIES && iterator.hasNext()) {
+            iterator.next().getValue().release();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * 在预加载线程中打开 decoder 并解码缩略图
+     */
+    private static void load(Entry entry, Source source)
+    {
+        if (entry.isReleased()) {
+            source.close();
+            entry.setResult(null, null, 0, null);
+            return;
+        }
+
+        long before = System.currentTimeMillis();
+        Bitmap.Config config = entry.mConfig == null ? source.readConfig() : entry.mConfig;
+        IRegionDecoder decoder = null;
+        try {
+            decoder = source.open();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        catch (OutOfMemoryError e) {
+            /**
+             * 图片太大, 当作打开失败, 预加载线程还要继续使用
+             */
+            Log.e(TAG, "Open decoder failed: " + e);
+        }
+
+        if (decoder == null) {
+            entry.setResult(null, null, 0, null);
+            return;
+        }
+
+        int iw = decoder.getWidth();
+        int ih = decoder.getHeight();
+        int sampleSize = GridGeometry.getInitSampleSize(iw, ih, entry.mViewWidth, entry.mViewHeight);
+
+        GridGeometry geometry = new GridGeometry();
+        geometry.setImage(iw, ih, entry.mTileSize);
+        int rows = geometry.getRows();
+        int cols = geometry.getCols();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = config;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+
+        Bitmap[][] thumbs = new Bitmap[rows][cols];
+        int[] bounds = new int[4];
+        Rect rect = new Rect();
+        for (int n = 0; n < rows && !entry.isReleased(); ++n) {
+            for (int m = 0; m < cols; ++m) {
+                if (geometry.getUnitRect(n, m, bounds)) {
+                    rect.set(bounds[GridGeometry.LEFT], bounds[GridGeometry.TOP],
+                            bounds[GridGeometry.RIGHT], bounds[GridGeometry.BOTTOM]);
+                    thumbs[n][m] = decoder.decodeRegion(rect, options);
+                }
+            }
+        }
+
+        if (DEBUG) {
+            Log.e(TAG, "Preload " + entry.mSourceKey + " Spend Time: " + (System.currentTimeMillis() - before));
+        }
+
+        entry.setResult(decoder, config, sampleSize, thumbs);
+    }
+
+    /**
+     * 输入流的图片源, 输入流在读取之后关闭
+     */
+    static Source newSource(InputStream stream)
+    {
+        final InputStream is = stream.markSupported() ? stream : new BufferedInputStream(stream);
+        return new Source()
+        {
+            @Override
+            public IRegionDecoder open() throws IOException
+            {
+                return DecoderPool.newInstance(is);
+            }
+
+            @Override
+            public Bitmap.Config readConfig()
+            {
+                return ImageHeader.getConfig(is);
+            }
+
+            @Override
+            public void close()
+            {
+                try {
+                    is.close();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+    }
+
+    /**
+     * 文件路径的图片源
+     */
+    static Source newSource(final String path, final int workerCount)
+    {
+        return new Source()
+        {
+            @Override
+            public IRegionDecoder open() throws IOException
+            {
+                return DecoderPool.newInstance(path, workerCount);
+            }
+
+            @Override
+            public Bitmap.Config readConfig()
+            {
+                return ImageHeader.getConfig(path);
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+}
@@ -0,0 +1,247 @@
+package cn.kejin.ximageview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 从像素缓存文件中读取区域的 decoder
+ * 缓存文件中按行保存 bitmap 的原始像素 (copyPixelsToBuffer), 没有任何压缩,
+ * 写入和读取都只是内存拷贝, 文件通过 mmap 映射, 读取一个区域时直接从映射的内存中拷贝对应的行
+ *
+ * inSampleSize &gt; 1 时使用最近邻采样, 每隔 inSampleSize 个像素取一个
+ */
+class PixelFileDecoder implements IRegionDecoder
+{
+    private final File mFile;
+
+    private final int mWidth;
+    private final int mHeight;
+
+    private final Bitmap.Config mConfig;
+
+    /**
+     * 每个像素的字节数, 和每一行的字节数
+     */
+    private final int mPixelBytes;
+    private final int mRowBytes;
+
+    /**
+     * 映射的像素, 只使用绝对位置读取, 所以多个线程可以同时读
+     */
+    private final MappedByteBuffer mPixels;
+
+    private volatile boolean mIsRecycled = false;
+
+    /**
+     * 每个线程复用一个 buffer, 用来拼接一块区域的像素
+     */
+    private final ThreadLocal<ByteBuffer> mBuffers = new ThreadLocal<ByteBuffer>();
+
+    private PixelFileDecoder(File file, Bitmap bitmap, MappedByteBuffer pixels)
+    {
+        mFile = file;
+        mWidth = bitmap.getWidth();
+        mHeight = bitmap.getHeight();
+        mConfig = bitmap.getConfig();
+        mPixelBytes = getPixelBytes(mConfig);
+        mRowBytes = bitmap.getRowBytes();
+        mPixels = pixels;
+    }
+
+    /**
+     * 将 bitmap 的像素写入 dir 中的一个新的缓存文件, 并创建 decoder
+     * 回收 decoder 时会删除这个文件
+     *
+     * @param dir 缓存目录
+     * @param bitmap 原图
+     * @return PixelFileDecoder
+     * @throws IOException 写入失败, 或者不支持的 bitmap config
+     */
+    public static PixelFileDecoder newInstance(File dir, Bitmap bitmap) throws IOException
+    {
+        if (bitmap == null || bitmap.isRecycled() || getPixelBytes(bitmap.getConfig()) <= 0) {
+            throw new IOException("Unsupported bitmap: " + bitmap);
+        }
+
+        File file = File.createTempFile("ximageview", ".pixels", dir);
+        file.deleteOnExit();
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            int length = bitmap.getRowBytes() * bitmap.getHeight();
+            raf.setLength(length);
+
+            MappedByteBuffer pixels = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            bitmap.copyPixelsToBuffer(pixels);
+
+            return new PixelFileDecoder(file, bitmap, pixels);
+        }
+        catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        catch (RuntimeException e) {
+            file.delete();
+            throw new IOException("Write pixels failed: " + e);
+        }
+        finally {
+            /**
+             * 关闭文件之后映射仍然有效
+             */
+            if (raf != null) {
+                try {
+                    raf.close();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static int getPixelBytes(Bitmap.Config config)
+    {
+        if (config == null) {
+            return 0;
+        }
+
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+
+            case ARGB_8888:
+                return 4;
+
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public int getWidth()
+    {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return mHeight;
+    }
+
+    public Bitmap.Config getConfig()
+    {
+        return mConfig;
+    }
+
+    @Override
+    public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options)
+    {
+        if (mIsRecycled || rect.left < 0 || rect.top < 0 || rect.right > mWidth || rect.bottom > mHeight) {
+            return null;
+        }
+
+        /**
+         * 和 BitmapRegionDecoder 一样, 解码出来的尺寸向下取整
+         */
+        int sampleSize = Math.max(1, options.inSampleSize);
+        int width = Math.max(1, rect.width() / sampleSize);
+        int height = Math.max(1, rect.height() / sampleSize);
+
+        Bitmap bitmap = options.inBitmap;
+        if (bitmap != null) {
+            if (bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() != mConfig ||
+                    bitmap.getWidth() != width || bitmap.getHeight() != height) {
+                return null;
+            }
+        }
+        else {
+            bitmap = Bitmap.createBitmap(width, height, mConfig);
+        }
+
+        int dstRowBytes = bitmap.getRowBytes();
+        ByteBuffer buffer = getBuffer(dstRowBytes * height);
+        if (sampleSize == 1) {
+            /**
+             * 整行拷贝
+             */
+            ByteBuffer src = mPixels.duplicate();
+            int rowLength = width * mPixelBytes;
+            for (int y = 0; y < height; ++y) {
+                int offset = (rect.top + y) * mRowBytes + rect.left * mPixelBytes;
+                src.limit(offset + rowLength).position(offset);
+                buffer.position(y * dstRowBytes);
+                buffer.put(src);
+            }
+        }
+        else {
+            for (int y = 0; y < height; ++y) {
+                int rowOffset = (rect.top + y * sampleSize) * mRowBytes;
+                int dst = y * dstRowBytes;
+                for (int x = 0; x < width; ++x) {
+                    int src = rowOffset + (rect.left + x * sampleSize) * mPixelBytes;
+                    switch (mPixelBytes) {
+                        case 4:
+                            buffer.putInt(dst, mPixels.getInt(src));
+                            break;
+
+                        case 2:
+                            buffer.putShort(dst, mPixels.getShort(src));
+                            break;
+
+                        default:
+                            buffer.put(dst, mPixels.get(src));
+                            break;
+                    }
+                    dst += mPixelBytes;
+                }
+            }
+        }
+
+        buffer.position(0);
+        buffer.limit(dstRowBytes * height);
+        bitmap.copyPixelsFromBuffer(buffer);
+        return bitmap;
+    }
+
+    private ByteBuffer getBuffer(int capacity)
+    {
+        ByteBuffer buffer = mBuffers.get();
+        if (buffer == null || buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+            mBuffers.set(buffer);
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public boolean isRecycled()
+    {
+        return mIsRecycled;
+    }
+
+    /**
+     * 删除缓存文件, 已经映射的内存在没有引用之后才会释放
+     */
+    @Override
+    public void recycle()
+    {
+        mIsRecycled = true;
+        mFile.delete();
+    }
+}
@@ -0,0 +1,296 @@
+package cn.kejin.ximageview;
+
+import android.graphics.Bitmap;
+
+/**
+ * 按字节数限制大小的单元格 bitmap 缓存, 超出预算时淘汰最久没有使用的 tile
+ *
+ * tile 由 (row, col, sampleSize) 来区分, 但是缓存本身不做查找,
+ * 每个单元格自己保存各个 sample size 的 tile, 这里只维护一个双向链表来记录使用顺序,
+ * 所以查找和更新使用顺序都不需要分配任何对象
+ *
+ * 解码线程只会添加 tile, 淘汰只在 UI 线程中进行, 保证正在画的 bitmap 不会被放回复用池
+ */
+class TileCache
+{
+    /**
+     * 默认的缓存大小
+     */
+    public final static long DEFAULT_MAX_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
+    /**
+     * sample size 的 inSampleSize 都是 2^n, 最多 2^(MAX_OCTAVE - 1)
+     */
+    public final static int MAX_OCTAVE = 16;
+
+    /**
+     * 以 n * SCALE_STEPS + 缩小的级数 作为 level, 参考 GridGeometry.getExactSampleSize()
+     */
+    public final static int MAX_LEVEL = MAX_OCTAVE * GridGeometry.SCALE_STEPS;
+
+    /**
+     * 缓存中的一个 tile
+     */
+    static class Tile
+    {
+        public final int mRow;
+        public final int mCol;
+        public final int mSampleSize;
+
+        /**
+         * 这个 tile 属于哪一个单元格
+         */
+        public final Object mOwner;
+
+        public final Bitmap mBitmap;
+        public final int mBytes;
+
+        /**
+         * 最近一次被画出来的帧
+         */
+        private long mFrame = -1;
+
+        private Tile mPrev = null;
+        private Tile mNext = null;
+        private boolean mInCache = false;
+
+        public Tile(Object owner, int row, int col, int sampleSize, Bitmap bitmap)
+        {
+            mOwner = owner;
+            mRow = row;
+            mCol = col;
+            mSampleSize = sampleSize;
+            mBitmap = bitmap;
+            mBytes = bitmap == null ? 0 : bitmap.getByteCount();
+        }
+
+        public int getLevel()
+        {
+            return getLevel(mSampleSize);
+        }
+
+        /**
+         * @return 是否被画出来过, 没有画过的是预加载的 tile
+         */
+        public boolean wasDrawn()
+        {
+            return mFrame >= 0;
+        }
+
+        public static int getLevel(int sampleSize)
+        {
+            int octave = Math.min(MAX_OCTAVE - 1,
+                    Integer.numberOfTrailingZeros(GridGeometry.getDecodeSampleSize(sampleSize)));
+            return octave * GridGeometry.SCALE_STEPS + GridGeometry.getScaleStep(sampleSize);
+        }
+    }
+
+    /**
+     * tile 被淘汰时回调
+     */
+    interface OnEvictedListener
+    {
+        void onTileEvicted(Tile tile);
+    }
+
+    /**
+     * 选择需要淘汰的 tile
+     */
+    interface Filter
+    {
+        boolean shouldEvict(Tile tile);
+    }
+
+    private final OnEvictedListener mListener;
+
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+
+    private long mCurBytes = 0;
+
+    private int mCount = 0;
+
+    /**
+     * mHead 是最近使用的, mTail 是最久没有使用的
+     */
+    private Tile mHead = null;
+    private Tile mTail = null;
+
+    /**
+     * 当前帧, 当前帧画过的 tile 不会被淘汰
+     */
+    private long mFrame = 0;
+
+    public TileCache(OnEvictedListener listener)
+    {
+        mListener = listener;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes)
+    {
+        mMaxBytes = maxBytes <= 0 ? DEFAULT_MAX_BYTES : maxBytes;
+    }
+
+    public synchronized long getMaxBytes()
+    {
+        return mMaxBytes;
+    }
+
+    /**
+     * @return 当前缓存的字节数
+     */
+    public synchronized long getSize()
+    {
+        return mCurBytes;
+    }
+
+    public synchronized int getCount()
+    {
+        return mCount;
+    }
+
+    /**
+     * 添加一个刚解码出来的 tile, 放在最前面
+     */
+    public synchronized void put(Tile tile)
+    {
+        if (tile.mInCache) {
+            return;
+        }
+
+        tile.mInCache = true;
+        linkHead(tile);
+        mCurBytes += tile.mBytes;
+        mCount += 1;
+    }
+
+    /**
+     * 移除一个 tile, 不会回调 OnEvictedListener
+     */
+    public synchronized void remove(Tile tile)
+    {
+        if (!tile.mInCache) {
+            return;
+        }
+
+        unlink(tile);
+        tile.mInCache = false;
+        mCurBytes -= tile.mBytes;
+        mCount -= 1;
+    }
+
+    /**
+     * 开始画新的一帧
+     */
+    public synchronized void beginFrame()
+    {
+        mFrame += 1;
+    }
+
+    /**
+     * 这个 tile 在当前帧被画出来了, 移到最前面
+     */
+    public synchronized void touch(Tile tile)
+    {
+        if (!tile.mInCache) {
+            return;
+        }
+
+        tile.mFrame = mFrame;
+        if (mHead != tile) {
+            unlink(tile);
+            linkHead(tile);
+        }
+    }
+
+    /**
+     * 淘汰最久没有使用的 tile, 直到缓存小于预算, 当前帧画过的 tile 不会被淘汰
+     * 只能在 UI 线程中调用
+     */
+    public void trimToSize()
+    {
+        while (true) {
+            Tile tile;
+            synchronized (this) {
+                tile = mTail;
+                if (mCurBytes <= mMaxBytes || tile == null || tile.mFrame == mFrame) {
+                    return;
+                }
+                remove(tile);
+            }
+
+            if (mListener != null) {
+                mListener.onTileEvicted(tile);
+            }
+        }
+    }
+
+    /**
+     * 淘汰所有符合条件的 tile, 不管缓存是否超出预算, 当前帧画过的 tile 不会被淘汰
+     * 只能在 UI 线程中调用
+     *
+     * @return 淘汰的字节数
+     */
+    public long evict(Filter filter)
+    {
+        long bytes = 0;
+        Tile tile;
+        synchronized (this) {
+            tile = mTail;
+        }
+
+        while (tile != null) {
+            Tile prev;
+            boolean evicted = false;
+            synchronized (this) {
+                prev = tile.mPrev;
+                if (tile.mInCache && tile.mFrame != mFrame && filter.shouldEvict(tile)) {
+                    remove(tile);
+                    evicted = true;
+                }
+            }
+
+            if (evicted) {
+                bytes += tile.mBytes;
+                if (mListener != null) {
+                    mListener.onTileEvicted(tile);
+                }
+            }
+            tile = prev;
+        }
+
+        return bytes;
+    }
+
+    private void linkHead(Tile tile)
+    {
+        tile.mPrev = null;
+        tile.mNext = mHead;
+        if (mHead != null) {
+            mHead.mPrev = tile;
+        }
+        mHead = tile;
+        if (mTail == null) {
+            mTail = tile;
+        }
+    }
+
+    private void unlink(Tile tile)
+    {
+        if (tile.mPrev != null) {
+            tile.mPrev.mNext = tile.mNext;
+        }
+        else {
+            mHead = tile.mNext;
+        }
+
+        if (tile.mNext != null) {
+            tile.mNext.mPrev = tile.mPrev;
+        }
+        else {
+            mTail = tile.mPrev;
+        }
+
+        tile.mPrev = null;
+        tile.mNext = null;
+    }
+}
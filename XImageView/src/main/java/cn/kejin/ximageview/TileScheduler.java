@@ -0,0 +1,345 @@
+package cn.kejin.ximageview;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+/**
+ * 单元格解码请求的调度器
+ * 每个客户端 (BitmapManager) 有自己的优先队列, priority 越小越先被解码,
+ * 解码线程在真正开始解码之前会再检查一次请求是否还有效, 无效的请求直接丢弃
+ *
+ * 多个客户端可以共享同一个调度器 (getShared()), 解码线程的数量是固定的,
+ * 解码线程总是先处理在屏幕上的客户端, 然后才处理不在屏幕上的客户端 (比如 ViewPager 中相邻的页面)
+ *
+ * 队列中还没有开始的请求可以随时被取消, 然后按照新的优先级重新提交
+ */
+class TileScheduler
+{
+    private final static String SHARED_THREAD_NAME = "XImageDecoder-shared";
+
+    private static TileScheduler sShared = null;
+
+    /**
+     * 请求的执行者
+     */
+    interface Callback
+    {
+        /**
+         * 在解码线程中, 开始解码之前检查这个请求是否还有效
+         * 比如 sample size 已经过时, 或者单元格已经离开了可见区域
+         *
+         * @param request 请求
+         * @return 是否还需要解码
+         */
+        boolean isRequestValid(Request request);
+
+        /**
+         * 在解码线程中执行请求
+         *
+         * @param request 请求
+         */
+        void onExecute(Request request);
+
+        /**
+         * 请求被取消或者被丢弃, 没有执行
+         *
+         * @param request 请求
+         */
+        void onDropped(Request request);
+    }
+
+    /**
+     * 一个单元格的解码请求
+     */
+    static class Request implements Comparable<Request>
+    {
+        public final int mRow;
+        public final int mCol;
+        public final int mSampleSize;
+        public final int mPriority;
+
+        /**
+         * 是否是初始缩略图的请求, 缩略图不属于任何一个 sample size 的 tile
+         */
+        public final boolean mIsThumb;
+
+        /**
+         * 提交的时间 (System.nanoTime()), 用来统计排队的时间
+         */
+        public final long mSubmitTime;
+
+        /**
+         * 相同优先级时, 先提交的先执行
+         */
+        private final long mSequence;
+
+        private final Client mClient;
+
+        private Request(Client client, int row, int col, int sampleSize, int priority,
+                        boolean thumb, long sequence)
+        {
+            mClient = client;
+            mRow = row;
+            mCol = col;
+            mSampleSize = sampleSize;
+            mPriority = priority;
+            mIsThumb = thumb;
+            mSequence = sequence;
+            mSubmitTime = System.nanoTime();
+        }
+
+        @Override
+        public int compareTo(Request another)
+        {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * 使用调度器的客户端, 有自己的请求队列
+     */
+    class Client
+    {
+        private final Callback mCallback;
+
+        private final PriorityQueue<Request> mQueue = new PriorityQueue<Request>();
+
+        /**
+         * 是否在屏幕上, 只有 mLock 中才能访问
+         */
+        private boolean mIsForeground = true;
+
+        private boolean mIsReleased = false;
+
+        private Client(Callback callback)
+        {
+            mCallback = callback;
+        }
+
+        /**
+         * 提交一个请求
+         *
+         * @param row 单元格的行
+         * @param col 单元格的列
+         * @param sampleSize 需要解码的 sample size
+         * @param priority 优先级, 越小越优先
+         */
+        public void submit(int row, int col, int sampleSize, int priority)
+        {
+            submit(row, col, sampleSize, priority, false);
+        }
+
+        /**
+         * 提交一个请求
+         *
+         * @param row 单元格的行
+         * @param col 单元格的列
+         * @param sampleSize 需要解码的 sample size
+         * @param priority 优先级, 越小越优先
+         * @param thumb 是否是缩略图的请求
+         */
+        public void submit(int row, int col, int sampleSize, int priority, boolean thumb)
+        {
+            synchronized (mLock) {
+                if (mIsShutdown || mIsReleased) {
+                    return;
+                }
+                mQueue.add(new Request(this, row, col, sampleSize, priority, thumb, mSequence++));
+                mLock.notify();
+            }
+        }
+
+        /**
+         * 取消所有还没有开始的请求, 正在解码中的请求不受影响
+         */
+        public void cancelAll()
+        {
+            ArrayList<Request> dropped;
+            synchronized (mLock) {
+                if (mQueue.isEmpty()) {
+                    return;
+                }
+                dropped = new ArrayList<Request>(mQueue);
+                mQueue.clear();
+            }
+
+            for (Request request : dropped) {
+                mCallback.onDropped(request);
+            }
+        }
+
+        /**
+         * 设置是否在屏幕上, 在屏幕上的客户端的请求总是先被执行
+         */
+        public void setForeground(boolean foreground)
+        {
+            synchronized (mLock) {
+                mIsForeground = foreground;
+            }
+        }
+
+        /**
+         * 不再使用这个调度器, 队列中的请求直接丢弃, 不会回调 onDropped()
+         */
+        public void release()
+        {
+            synchronized (mLock) {
+                mIsReleased = true;
+                mQueue.clear();
+                mClients.remove(this);
+            }
+        }
+
+        public TileScheduler getScheduler()
+        {
+            return TileScheduler.this;
+        }
+    }
+
+    private final ArrayList<Client> mClients = new ArrayList<Client>();
+
+    private final Thread[] mWorkers;
+
+    private long mSequence = 0;
+
+    private boolean mIsShutdown = false;
+
+    private final Object mLock = new Object();
+
+    /**
+     * @param name 线程名
+     * @param workerCount 解码线程的数量
+     */
+    public TileScheduler(String name, int workerCount)
+    {
+        mWorkers = new Thread[Math.max(1, workerCount)];
+        for (int i = 0; i < mWorkers.length; ++i) {
+            mWorkers[i] = new Thread(mWorkerRunnable, name + "-" + i);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * 整个应用共享的调度器, 解码线程的数量和 CPU 的核数相关, 不会被停止
+     */
+    public static synchronized TileScheduler getShared()
+    {
+        if (sShared == null) {
+            sShared = new TileScheduler(SHARED_THREAD_NAME, DecoderPool.getDefaultCount());
+        }
+
+        return sShared;
+    }
+
+    /**
+     * @return 解码线程的数量
+     */
+    public int getWorkerCount()
+    {
+        return mWorkers.length;
+    }
+
+    /**
+     * 添加一个客户端
+     *
+     * @param callback 请求的执行者
+     * @return Client
+     */
+    public Client newClient(Callback callback)
+    {
+        Client client = new Client(callback);
+        synchronized (mLock) {
+            mClients.add(client);
+        }
+        return client;
+    }
+
+    /**
+     * 停止所有的解码线程, 队列中的请求都会被丢弃
+     */
+    public void shutdown()
+    {
+        synchronized (mLock) {
+            mIsShutdown = true;
+            for (Client client : mClients) {
+                client.mQueue.clear();
+            }
+            mClients.clear();
+            mLock.notifyAll();
+        }
+
+        for (Thread worker : mWorkers) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * 取出下一个请求: 先看在屏幕上的客户端, 再按照优先级和提交的先后
+     */
+    private Request take() throws InterruptedException
+    {
+        synchronized (mLock) {
+            while (true) {
+                if (mIsShutdown) {
+                    return null;
+                }
+
+                Client best = null;
+                Request head = null;
+                for (int i = 0; i < mClients.size(); ++i) {
+                    Client client = mClients.get(i);
+                    Request request = client.mQueue.peek();
+                    if (request == null) {
+                        continue;
+                    }
+
+                    if (best == null ||
+                            (client.mIsForeground && !best.mIsForeground) ||
+                            (client.mIsForeground == best.mIsForeground && request.compareTo(head) < 0)) {
+                        best = client;
+                        head = request;
+                    }
+                }
+
+                if (best != null) {
+                    return best.mQueue.poll();
+                }
+
+                mLock.wait();
+            }
+        }
+    }
+
+    private final Runnable mWorkerRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            while (true) {
+                Request request;
+                try {
+                    request = take();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+
+                if (request == null) {
+                    return;
+                }
+
+                Callback callback = request.mClient.mCallback;
+                if (callback.isRequestValid(request)) {
+                    callback.onExecute(request);
+                }
+                else {
+                    callback.onDropped(request);
+                }
+            }
+        }
+    };
+}
@@ -1,22 +1,25 @@
 package cn.kejin.ximageview;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
+import android.os.Build;
 import android.support.annotation.NonNull;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewParent;
+import android.view.ViewTreeObserver;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.FileDescriptor;
 import java.io.InputStream;
 
 
@@ -46,6 +49,11 @@ public class XImageView extends View implements IXImageView
      */
     private OnActionListener mActionListener = null;
 
+    /**
+     * 性能统计的监听
+     */
+    private OnMetricsListener mMetricsListener = null;
+
     /**
      * Gesture Detector
      */
@@ -66,6 +74,11 @@ public class XImageView extends View implements IXImageView
      */
     private DoubleType mDoubleType = DoubleType.FIT_VIEW_MIN_VIEW_MAX;
 
+    /**
+     * 初始缩略图的解码方式
+     */
+    private ThumbType mThumbType = ThumbType.AUTO;
+
     public XImageView(Context context)
     {
         this(context, null, 0);
@@ -85,10 +98,11 @@ public class XImageView extends View implements IXImageView
     public XImageView(Context context, AttributeSet attrs, int defStyleAttr)
     {
         super(context, attrs, defStyleAttr);
-        initialize(context, attrs);
 
         mBM = new BitmapManager(this);
         mGestureManager = new GestureManager(this, mBM);
+
+        initialize(context, attrs);
     }
 
     private void initialize(Context context, AttributeSet attrs)
@@ -102,6 +116,12 @@ public class XImageView extends View implements IXImageView
             int doubleType = ta.getInt(R.styleable.XImageView_doubleType, DoubleType.FIT_VIEW_MIN_VIEW_MAX.value);
             mDoubleType = DoubleType.valueOf(doubleType);
 
+            int tileSize = ta.getInt(R.styleable.XImageView_tileSize, BitmapManager.DEFAULT_TILE_SIZE);
+            mBM.setTileSize(tileSize);
+
+            int thumbType = ta.getInt(R.styleable.XImageView_thumbType, ThumbType.AUTO.value);
+            mThumbType = ThumbType.valueOf(thumbType);
+
             ta.recycle();
         }
 
@@ -165,11 +185,33 @@ public class XImageView extends View implements IXImageView
         mBM.onViewSizeChanged(getWidth(), getHeight());
     }
 
+    /**
+     * 每一帧画之前检查一次是否在屏幕上, 比如 ViewPager 中被滑出屏幕的页面
+     */
+    private final Rect mVisibleRect = new Rect();
+    private final ViewTreeObserver.OnPreDrawListener mPreDrawListener = new ViewTreeObserver.OnPreDrawListener()
+    {
+        @Override
+        public boolean onPreDraw()
+        {
+            mBM.setOnScreen(isShown() && getGlobalVisibleRect(mVisibleRect));
+            return true;
+        }
+    };
+
     @Override
     protected void onAttachedToWindow()
     {
         super.onAttachedToWindow();
 
+        getViewTreeObserver().addOnPreDrawListener(mPreDrawListener);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            if (mComponentCallbacks == null) {
+                mComponentCallbacks = new TrimMemoryCallbacks();
+            }
+            getContext().getApplicationContext().registerComponentCallbacks(mComponentCallbacks);
+        }
+
         if(DEBUG) {
             Log.e(TAG, "OnAttachedToWindow, Width: " + getWidth() + " Height" + getHeight());
         }
@@ -180,6 +222,11 @@ public class XImageView extends View implements IXImageView
     {
         super.onDetachedFromWindow();
 
+        getViewTreeObserver().removeOnPreDrawListener(mPreDrawListener);
+        if (mComponentCallbacks != null) {
+            getContext().getApplicationContext().unregisterComponentCallbacks(mComponentCallbacks);
+        }
+        mBM.setOnScreen(false);
         mBM.destroy();
 
         if (DEBUG) {
@@ -188,6 +235,32 @@ public class XImageView extends View implements IXImageView
     }
 
 
+    /**
+     * 系统内存不足时分阶段释放 tile 和缩略图
+     * ComponentCallbacks2 从 ICE_CREAM_SANDWICH 开始才有, 所以在 attach 时才创建
+     */
+    private ComponentCallbacks2 mComponentCallbacks = null;
+
+    private class TrimMemoryCallbacks implements ComponentCallbacks2
+    {
+        @Override
+        public void onTrimMemory(int level)
+        {
+            mBM.trimMemory(level);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig)
+        {
+        }
+
+        @Override
+        public void onLowMemory()
+        {
+            mBM.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        }
+    }
+
     public void setImage(Bitmap bitmap)
     {
         setImage(bitmap, false);
@@ -196,7 +269,7 @@ public class XImageView extends View implements IXImageView
     /**
      * Bitmap 转换为 InputStream, 使用 BitmapRegionDecoder 管理
      * @param bitmap 图片
-     * @param cache 是否需要将bitmap 保存为文件再 转换为InputStream
+     * @param cache 是否需要将bitmap 的像素保存为缓存文件, 之后从文件中读取, 不再持有这个 bitmap
      */
     public void setImage(Bitmap bitmap, boolean cache)
     {
@@ -205,11 +278,12 @@ public class XImageView extends View implements IXImageView
 
 
     /**
+     * 根据图片自动选择 config: 不透明的图片使用 RGB_565, 有透明通道的使用 ARGB_8888
      * @param path path
      */
     public void setImage(String path)
     {
-        setImage(new File(path), Bitmap.Config.RGB_565);
+        setImage(new File(path), null);
     }
 
     public void setImage(String path, Bitmap.Config config)
@@ -218,13 +292,19 @@ public class XImageView extends View implements IXImageView
     }
 
     /**
+     * 根据图片自动选择 config
      * @param file File
      */
     public void setImage(File file)
     {
-        setImage(file, Bitmap.Config.RGB_565);
+        setImage(file, null);
     }
 
+    /**
+     * 文件直接由 decoder 随机读取, 不会把整个文件读到内存中
+     * @param file File
+     * @param config config, null 时根据图片自动选择 (读取文件头, 不透明的图片使用 RGB_565, 其他使用 ARGB_8888)
+     */
     public void setImage(File file, Bitmap.Config config)
     {
         if (file == null || !file.exists()) {
@@ -232,22 +312,34 @@ public class XImageView extends View implements IXImageView
             return;
         }
 
-        try {
-            FileInputStream fis = new FileInputStream(file);
-            setImage(fis, config);
-        }
-        catch (FileNotFoundException e) {
-            e.printStackTrace();
-            onSetImageFinished(null, false, new Rect());
-        }
+        mBM.setFile(file, config, getSourceKey(file));
+    }
+
+    /**
+     * 文件的标识, 文件被修改之后标识也会变化
+     */
+    private static String getSourceKey(File file)
+    {
+        return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+    }
+
+    /**
+     * 只会使用一个解码线程, 因为同一个 FileDescriptor 的读取位置是共享的
+     * @param fd FileDescriptor, 由调用者负责关闭, 在设置下一张图片之前不能关闭
+     * @param config config, null 时根据图片自动选择
+     */
+    public void setImage(FileDescriptor fd, Bitmap.Config config)
+    {
+        mBM.setFileDescriptor(fd, config);
     }
 
     /**
+     * 根据图片自动选择 config
      * @param inputStream 输入流
      */
     public void setImage(InputStream inputStream)
     {
-        setImage(inputStream, Bitmap.Config.RGB_565);
+        setImage(inputStream, null);
     }
 
     public void setImage(InputStream is, Bitmap.Config config)
@@ -255,6 +347,222 @@ public class XImageView extends View implements IXImageView
         mBM.setInputStream(is, config);
     }
 
+    /**
+     * @param is 输入流
+     * @param config config, null 时根据图片自动选择
+     * @param sourceKey 图片源的唯一标识 (比如 url), 开启磁盘缓存后用来读取之前解码过的内容,
+     *                  图片内容变化时 key 也必须变化
+     */
+    public void setImage(InputStream is, Bitmap.Config config, String sourceKey)
+    {
+        mBM.setInputStream(is, config, sourceKey);
+    }
+
+    /**
+     * 预加载一张图片 (比如 ViewPager 中的下一页): 在后台打开 decoder, 读取尺寸, 并解码初始的缩略图,
+     * 之后任意一个 XImageView 对同一个文件 setImage() 时直接使用预加载的结果, 不需要再等待解码
+     * 最多保留 3 个预加载, 超出时释放最早的
+     * @param file 文件
+     * @param config config, 必须和 setImage() 时一样, null 表示自动选择
+     * @param viewWidth 将要显示这张图片的 view 的宽
+     * @param viewHeight 将要显示这张图片的 view 的高
+     */
+    public static void preload(File file, Bitmap.Config config, int viewWidth, int viewHeight)
+    {
+        preload(file, config, BitmapManager.DEFAULT_TILE_SIZE, viewWidth, viewHeight);
+    }
+
+    /**
+     * @param tileSize 单元格的大小, 必须和显示这张图片的 XImageView 的 setTileSize() 一样
+     */
+    public static void preload(File file, Bitmap.Config config, int tileSize, int viewWidth, int viewHeight)
+    {
+        if (file == null || !file.exists()) {
+            return;
+        }
+
+        ImagePreloader.preload(getSourceKey(file),
+                ImagePreloader.newSource(file.getAbsolutePath(), DecoderPool.getDefaultCount()),
+                config, tileSize, viewWidth, viewHeight);
+    }
+
+    /**
+     * 预加载输入流, 之后用同一个 sourceKey 调用 setImage(InputStream, Config, String) 时直接使用预加载的结果
+     * @param is 输入流, 读取之后会被关闭
+     * @param config config, 必须和 setImage() 时一样, null 表示自动选择
+     * @param sourceKey 图片源的唯一标识
+     * @param tileSize 单元格的大小, &lt;= 0 时使用默认值
+     * @param viewWidth 将要显示这张图片的 view 的宽
+     * @param viewHeight 将要显示这张图片的 view 的高
+     */
+    public static void preload(InputStream is, Bitmap.Config config, String sourceKey,
+                               int tileSize, int viewWidth, int viewHeight)
+    {
+        if (is == null) {
+            return;
+        }
+
+        ImagePreloader.preload(sourceKey, ImagePreloader.newSource(is),
+                config, tileSize, viewWidth, viewHeight);
+    }
+
+    /**
+     * 取消并释放一个文件的预加载
+     */
+    public static void cancelPreload(File file)
+    {
+        if (file != null) {
+            ImagePreloader.remove(getSourceKey(file));
+        }
+    }
+
+    /**
+     * 取消并释放一个输入流的预加载
+     * @param sourceKey 预加载时的 sourceKey
+     */
+    public static void cancelPreload(String sourceKey)
+    {
+        ImagePreloader.remove(sourceKey);
+    }
+
+    /**
+     * 释放所有还没有被使用的预加载
+     */
+    public static void clearPreloads()
+    {
+        ImagePreloader.clear();
+    }
+
+    /**
+     * 开启磁盘缓存 (默认关闭), 解码过的缩略图和 tile 会保存在 getCacheDir() 中,
+     * 再次打开同一张图片时不需要重新解码, 在下一次 setImage() 时生效
+     * @param enabled 是否开启
+     */
+    public void setDiskCacheEnabled(boolean enabled)
+    {
+        mBM.setDiskCacheEnabled(enabled);
+    }
+
+    /**
+     * 设置磁盘缓存的大小 (默认为 100MB), 所有的 XImageView 共享
+     * @param bytes 字节数, &lt;= 0 时使用默认值
+     */
+    public void setDiskCacheSize(long bytes)
+    {
+        mBM.setDiskCacheSize(bytes);
+    }
+
+    /**
+     * 设置解码线程的数量, 多个线程可以同时解码不同的单元格,
+     * 每个线程都会打开一个独立的 decoder, 在下一次 setImage() 时生效
+     * @param count 线程数量, &lt;= 0 时使用默认值 (和CPU核数相关)
+     */
+    public void setDecodeWorkerCount(int count)
+    {
+        mBM.setDecodeWorkerCount(count);
+    }
+
+    /**
+     * 开启拖动时的帧缓存 (默认关闭)
+     * 上一帧保存在两个 view 大小的 ARGB_8888 离屏 bitmap 中, 只是平移时把上一帧平移过去, 只画新露出来的两条区域,
+     * 缩放或者有新的 tile 解码完成时全部重新画, 主要减少软件绘制时拖动的缩放和填充开销
+     * @param enabled 是否开启
+     */
+    public void setFrameCacheEnabled(boolean enabled)
+    {
+        mBM.setFrameCacheEnabled(enabled);
+    }
+
+    /**
+     * 按照显示的分辨率解码 (默认关闭), 在下一次 setImage() 时生效
+     * 默认的 sample size 只有 2^n, 比如缩小到 1/1.9 时按照原图解码, 内存和解码的像素是显示的近 4 倍,
+     * 开启之后每两个 2^n 之间再分成 4 级, 按照 2^n 解码之后在解码线程中缩小到这一级, 缓存中只保存缩小之后的 tile
+     * @param enabled 是否开启
+     */
+    public void setExactResolutionEnabled(boolean enabled)
+    {
+        mBM.setExactResolutionEnabled(enabled);
+    }
+
+    /**
+     * 使用整个应用共享的调度器 (默认不使用), 在下一次 setImage() 时生效
+     * 所有使用共享调度器的 XImageView 一起使用固定数量的解码线程, 并且优先解码在屏幕上的 XImageView,
+     * 适合 ViewPager 这种同时存在多个 XImageView 的情况
+     * @param enabled 是否使用
+     */
+    public void setSharedSchedulerEnabled(boolean enabled)
+    {
+        mBM.setSharedSchedulerEnabled(enabled);
+    }
+
+    /**
+     * 设置单元格的大小, 以原图的像素为单位, 和 view 的尺寸无关, 在下一次 setImage() 时生效
+     * 单元格越小, 拖动时需要解码的区域越小, 但是单元格的数量越多
+     * @param size 单元格的边长 (比如 256, 512, 1024), &lt;= 0 时使用默认值 512
+     */
+    public void setTileSize(int size)
+    {
+        mBM.setTileSize(size);
+    }
+
+    /**
+     * 设置 tile 缓存的大小 (默认为最大堆内存的 1/4), 超出时淘汰最久没有画过的 tile
+     * @param bytes 字节数, &lt;= 0 时使用默认值
+     */
+    public void setTileCacheSize(long bytes)
+    {
+        mBM.setTileCacheSize(bytes);
+    }
+
+    /**
+     * 获取单元格 bitmap 的复用池, 通过 getHitCount() 和 getMissCount() 可以查看复用的情况
+     * @return BitmapPool
+     */
+    public BitmapPool getBitmapPool()
+    {
+        return mBM.getBitmapPool();
+    }
+
+    /**
+     * 开启压缩的内存缓存 (默认关闭), 被 tile 缓存淘汰的 tile 压缩之后保存在内存中 (默认为 PNG, 无损),
+     * 再次需要时直接解压, 比重新从图片源解码快得多, 开启了磁盘缓存时不使用
+     * @param enabled 是否开启
+     */
+    public void setCompressedTileCacheEnabled(boolean enabled)
+    {
+        mBM.setCompressedTileCacheEnabled(enabled);
+    }
+
+    /**
+     * 设置压缩的内存缓存的压缩格式 (默认为 PNG, 无损)
+     * JPEG 的体积大约是像素的 1/10, 可以缓存多得多的 tile, 但是有损, 放大到 1:1 时可以看出压缩的痕迹,
+     * 有透明通道的 tile 总是使用 PNG
+     * @param format 压缩格式, null 时使用默认值
+     * @param quality 有损压缩的质量, 0 - 100
+     */
+    public void setCompressedTileCacheFormat(Bitmap.CompressFormat format, int quality)
+    {
+        mBM.setCompressedTileCacheFormat(format, quality);
+    }
+
+    /**
+     * 设置压缩的内存缓存的大小 (默认为最大堆内存的 1/16, 最多 16MB)
+     * @param bytes 压缩之后的字节数, &lt;= 0 时使用默认值
+     */
+    public void setCompressedTileCacheSize(long bytes)
+    {
+        mBM.setCompressedTileCacheSize(bytes);
+    }
+
+    /**
+     * 获取压缩的内存缓存, 通过 getHitCount() 可以查看避免了多少次重新解码
+     * @return CompressedTileCache
+     */
+    public CompressedTileCache getCompressedTileCache()
+    {
+        return mBM.getCompressedTileCache();
+    }
+
     /**
      * 设置监听
      * @param listener action listener
@@ -265,6 +573,15 @@ public class XImageView extends View implements IXImageView
         mGestureManager.setActionListener(listener);
     }
 
+    /**
+     * 设置性能统计的监听, 比如上报到线上的统计系统, 找出比较慢的设备和图片
+     * @param listener metrics listener, null 表示不统计
+     */
+    public void setMetricsListener(OnMetricsListener listener)
+    {
+        mMetricsListener = listener;
+    }
+
     /**
      * 缩放到指定的大小, 起始是以当前的大小为准
      * 并且以屏幕中心进行缩放
@@ -384,6 +701,15 @@ public class XImageView extends View implements IXImageView
         mDoubleType = (type == null) ? DoubleType.FIT_VIEW_MIN_VIEW_MAX : type;
     }
 
+    /**
+     * 设置初始缩略图的解码方式, 在下一次 setImage() 时生效
+     * @param type thumb type
+     */
+    public void setThumbType(ThumbType type)
+    {
+        mThumbType = (type == null) ? ThumbType.AUTO : type;
+    }
+
     @Override
     public XImageView getInstance()
     {
@@ -415,6 +741,12 @@ public class XImageView extends View implements IXImageView
         postInvalidate();
     }
 
+    @Override
+    public void callPostInvalidate(int left, int top, int right, int bottom)
+    {
+        postInvalidate(left, top, right, bottom);
+    }
+
 
     @Override
     public InitType getInitType()
@@ -428,6 +760,18 @@ public class XImageView extends View implements IXImageView
         return mDoubleType;
     }
 
+    @Override
+    public ThumbType getThumbType()
+    {
+        return mThumbType;
+    }
+
+    @Override
+    public OnMetricsListener getMetricsListener()
+    {
+        return mMetricsListener;
+    }
+
     @Override
     public void onSetImageFinished(BitmapManager bm, boolean success, Rect image)
     {
@@ -512,6 +856,76 @@ public class XImageView extends View implements IXImageView
         }
     }
 
+    /**
+     * 性能统计, 所有的时间都是纳秒 (System.nanoTime())
+     * 回调会在解码线程或者 UI 线程中直接调用, 不要在回调中做耗时的操作
+     */
+    public interface OnMetricsListener
+    {
+        /**
+         * 解码完一个 tile, 在解码线程中回调
+         * @param view XImageView
+         * @param sampleSize tile 的 sample size
+         * @param queueTime 从提交请求到开始解码的排队时间
+         * @param decodeTime 解码 (或者从缓存中读取) 的时间
+         * @param source tile 的来源, 只有 TileSource.DECODER 是真正的解码, 缓存的时间不要和解码的时间混在一起统计
+         */
+        void onTileDecoded(XImageView view, int sampleSize, long queueTime, long decodeTime, TileSource source);
+
+        /**
+         * 画完一帧, 在 UI 线程中回调
+         * @param view XImageView
+         * @param drawTime draw() 的时间
+         * @param cacheHits 这一帧中直接使用当前 sample size 的 tile 的单元格数
+         * @param cacheMisses 这一帧中只能使用其他 sample size 的 tile, 缩略图, 或者什么都没有画的单元格数
+         * @param liveTileBytes 当前 tile 缓存中的字节数
+         */
+        void onFrameDrawn(XImageView view, long drawTime, int cacheHits, int cacheMisses, long liveTileBytes);
+
+        /**
+         * setImage() 之后第一次画出图片, 在 UI 线程中回调
+         * @param view XImageView
+         * @param time 从 setImage() 到画出第一帧的时间
+         */
+        void onFirstFrame(XImageView view, long time);
+
+        /**
+         * 系统内存不足 (onTrimMemory) 时执行了一个释放阶段, 在 UI 线程中回调
+         * @param view XImageView
+         * @param level ComponentCallbacks2 的 TRIM_MEMORY_* 等级
+         * @param stage 阶段, BitmapManager.TRIM_STAGE_*
+         * @param bytes 这个阶段释放的字节数
+         */
+        void onMemoryTrimmed(XImageView view, int level, int stage, long bytes);
+    }
+
+    public static class SimpleMetricsListener implements OnMetricsListener
+    {
+        @Override
+        public void onTileDecoded(XImageView view, int sampleSize, long queueTime, long decodeTime, TileSource source)
+        {
+
+        }
+
+        @Override
+        public void onFrameDrawn(XImageView view, long drawTime, int cacheHits, int cacheMisses, long liveTileBytes)
+        {
+
+        }
+
+        @Override
+        public void onFirstFrame(XImageView view, long time)
+        {
+
+        }
+
+        @Override
+        public void onMemoryTrimmed(XImageView view, int level, int stage, long bytes)
+        {
+
+        }
+    }
+
 
 //    private int dpToPx(float dp)
 //    {
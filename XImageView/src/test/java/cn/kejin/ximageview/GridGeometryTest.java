@@ -0,0 +1,163 @@
+package cn.kejin.ximageview;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class GridGeometryTest
+{
+    @Test
+    public void computesUnitAndVisibleGrid()
+    {
+        GridGeometry geometry = new GridGeometry();
+        geometry.setImage(2000, 1100, 512);
+        assertEquals(3, geometry.getRows());
+        assertEquals(4, geometry.getCols());
+
+        int[] out = new int[4];
+        assertTrue(geometry.getUnitRect(2, 3, out));
+        assertArrayEquals(new int[] {1536, 1024, 2000, 1100}, out);
+        assertFalse(geometry.getUnitRect(3, 0, out));
+
+        /**
+         * 显示为原图的一半, view 为 400x300, sample size 为 2
+         */
+        geometry.getShowUnitRect(1, 1, 1000, 550, out);
+        assertArrayEquals(new int[] {256, 256, 512, 512}, out);
+
+        geometry.getVisibleGrid(1000, 550, 300, 200, 700, 500, 2, out);
+        assertArrayEquals(new int[] {1, 0, 3, 2}, out);
+
+        assertEquals(1, GridGeometry.getSampleSize(2000, 1100, 2000, 1100));
+        assertEquals(2, GridGeometry.getSampleSize(2000, 1100, 1000, 550));
+        assertEquals(4, GridGeometry.getSampleSize(2000, 1100, 400, 220));
+
+        /**
+         * 初始显示: 宽图以宽为准, 长图以高为准, 小图不放大
+         */
+        assertEquals(4, GridGeometry.getInitSampleSize(2000, 1100, 500, 1000));
+        assertEquals(4, GridGeometry.getInitSampleSize(1000, 8000, 1080, 1920));
+        assertEquals(1, GridGeometry.getInitSampleSize(300, 200, 1080, 1920));
+    }
+
+    /**
+     * 精确分辨率: 每两个 2^n 之间分成 4 级, 选择不大于实际比率的一级
+     */
+    @Test
+    public void computesExactSampleSize()
+    {
+        /**
+         * 缩小到 1/1.9: 按照原图解码, 再缩小 3 级 (2^(-3/4) = 0.59)
+         */
+        int sampleSize = GridGeometry.getExactSampleSize(1900, 1000, 1000, 526);
+        assertEquals(1, GridGeometry.getDecodeSampleSize(sampleSize));
+        assertEquals(3, GridGeometry.getScaleStep(sampleSize));
+        assertEquals(0.5946f, GridGeometry.getDecodeScale(sampleSize), 0.001f);
+
+        /**
+         * 刚好是 2^n 时和普通的 sample size 一样
+         */
+        assertEquals(4, GridGeometry.getExactSampleSize(2000, 1100, 500, 275));
+        assertEquals(1, GridGeometry.getExactSampleSize(2000, 1100, 3000, 1650));
+        assertEquals(1f, GridGeometry.getDecodeScale(4), 0f);
+
+        /**
+         * 缩小到 1/3: 2 * 2^(2/4) = 2.83
+         */
+        sampleSize = GridGeometry.getExactSampleSize(3000, 3000, 1000, 1000);
+        assertEquals(2, GridGeometry.getDecodeSampleSize(sampleSize));
+        assertEquals(2, GridGeometry.getScaleStep(sampleSize));
+
+        sampleSize = GridGeometry.doubleSampleSize(sampleSize);
+        assertEquals(4, GridGeometry.getDecodeSampleSize(sampleSize));
+        assertEquals(2, GridGeometry.getScaleStep(sampleSize));
+
+        /**
+         * 不同的级数是不同的 level, 普通的 sample size 的 level 是 4 的倍数
+         */
+        assertEquals(8, TileCache.Tile.getLevel(4));
+        assertEquals(6, TileCache.Tile.getLevel(GridGeometry.getExactSampleSize(3000, 3000, 1000, 1000)));
+    }
+
+    /**
+     * 自动选择缩略图的解码方式时比较的是解码时的 inSampleSize,
+     * 带有缩小级数的 sample size 数值很大, 但是解码时的 inSampleSize 小于 4 时仍然每一个单元格单独解码
+     */
+    @Test
+    public void singlePassThumbIgnoresScaleStep()
+    {
+        int[][] cases = {
+                /* 显示的边长, 解码时的 inSampleSize, 缩小的级数 */
+                {800, 1, 1},
+                {667, 1, 2},
+                {556, 1, 3},
+                {400, 2, 1},
+                {333, 2, 2},
+                {286, 2, 3},
+        };
+
+        for (int[] c : cases) {
+            int sampleSize = GridGeometry.getExactSampleSize(1000, 1000, c[0], c[0]);
+            assertEquals(c[1], GridGeometry.getDecodeSampleSize(sampleSize));
+            assertEquals(c[2], GridGeometry.getScaleStep(sampleSize));
+            assertTrue(sampleSize >= GridGeometry.SINGLE_PASS_MIN_SAMPLE_SIZE);
+            assertFalse(GridGeometry.isSinglePassThumbSize(sampleSize));
+        }
+
+        assertFalse(GridGeometry.isSinglePassThumbSize(2));
+        assertTrue(GridGeometry.isSinglePassThumbSize(4));
+        assertTrue(GridGeometry.isSinglePassThumbSize(GridGeometry.getExactSampleSize(1000, 1000, 200, 200)));
+    }
+
+    /**
+     * 模拟拖动时的每一帧: 计算可见的单元格和每一个单元格的显示区域, 稳定之后不应该分配任何对象
+     */
+    @Test
+    public void steadyScrollDoesNotAllocate()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        GridGeometry geometry = new GridGeometry();
+        geometry.setImage(20000, 15000, 512);
+        int[] visible = new int[4];
+        int[] unit = new int[4];
+
+        long threadId = Thread.currentThread().getId();
+        long checksum = 0;
+        checksum += scroll(geometry, visible, unit, 20000);
+
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        checksum += scroll(geometry, visible, unit, 20000);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(checksum != 0);
+        assertEquals(0, allocated);
+    }
+
+    private static long scroll(GridGeometry geometry, int[] visible, int[] unit, int frames)
+    {
+        long checksum = 0;
+        float showWidth = 10000;
+        float showHeight = 7500;
+        for (int i = 0; i < frames; ++i) {
+            int left = (i * 7) % 8000;
+            int top = (i * 5) % 6000;
+            geometry.getVisibleGrid(showWidth, showHeight, left, top, left + 1080, top + 1920, 2, visible);
+            for (int n = visible[GridGeometry.TOP]; n <= visible[GridGeometry.BOTTOM]; ++n) {
+                for (int m = visible[GridGeometry.LEFT]; m <= visible[GridGeometry.RIGHT]; ++m) {
+                    geometry.getShowUnitRect(n, m, showWidth, showHeight, unit);
+                    checksum += unit[GridGeometry.RIGHT] - unit[GridGeometry.LEFT];
+                }
+            }
+        }
+
+        return checksum;
+    }
+}
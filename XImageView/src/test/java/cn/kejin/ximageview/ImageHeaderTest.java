@@ -0,0 +1,137 @@
+package cn.kejin.ximageview;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ImageHeaderTest
+{
+    @Test
+    public void jpegIsOpaque()
+    {
+        byte[] data = new byte[32];
+        data[0] = (byte) 0xFF;
+        data[1] = (byte) 0xD8;
+        data[2] = (byte) 0xFF;
+        assertEquals(ImageHeader.OPAQUE, ImageHeader.getAlpha(data, data.length));
+    }
+
+    @Test
+    public void pngColorTypeAndTransparency()
+    {
+        /**
+         * RGBA 和 灰度 + alpha
+         */
+        assertEquals(ImageHeader.ALPHA, alphaOf(png(6, false)));
+        assertEquals(ImageHeader.ALPHA, alphaOf(png(4, false)));
+
+        /**
+         * RGB 和 调色板, 只有 tRNS 时才有透明
+         */
+        assertEquals(ImageHeader.OPAQUE, alphaOf(png(2, false)));
+        assertEquals(ImageHeader.ALPHA, alphaOf(png(2, true)));
+        assertEquals(ImageHeader.OPAQUE, alphaOf(png(3, false)));
+        assertEquals(ImageHeader.ALPHA, alphaOf(png(3, true)));
+
+        /**
+         * 文件头被截断, 还没有读到 IDAT
+         */
+        byte[] data = png(3, false);
+        assertEquals(ImageHeader.ALPHA_UNKNOWN, ImageHeader.getAlpha(data, 40));
+    }
+
+    @Test
+    public void webpFormats()
+    {
+        assertEquals(ImageHeader.OPAQUE, alphaOf(webp("VP8 ", 0)));
+
+        /**
+         * VP8L: alpha_is_used 在签名之后第 28 位
+         */
+        assertEquals(ImageHeader.ALPHA, alphaOf(webp("VP8L", 1 << 28)));
+        assertEquals(ImageHeader.OPAQUE, alphaOf(webp("VP8L", 0)));
+
+        /**
+         * VP8X: flags 中的 0x10
+         */
+        assertEquals(ImageHeader.ALPHA, alphaOf(webp("VP8X", 0x10)));
+        assertEquals(ImageHeader.OPAQUE, alphaOf(webp("VP8X", 0x08)));
+    }
+
+    @Test
+    public void unknownFormats()
+    {
+        byte[] gif = "GIF89a......".getBytes();
+        assertEquals(ImageHeader.ALPHA_UNKNOWN, alphaOf(gif));
+        assertEquals(ImageHeader.ALPHA_UNKNOWN, ImageHeader.getAlpha(null, 0));
+        assertEquals(ImageHeader.ALPHA_UNKNOWN, ImageHeader.getAlpha(new byte[4], 4));
+    }
+
+    private static int alphaOf(byte[] data)
+    {
+        return ImageHeader.getAlpha(data, data.length);
+    }
+
+    private static byte[] png(int colorType, boolean trns)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x89);
+        out.write('P');
+        out.write('N');
+        out.write('G');
+        out.write('\r');
+        out.write('\n');
+        out.write(0x1A);
+        out.write('\n');
+
+        byte[] ihdr = new byte[13];
+        ihdr[3] = 100;
+        ihdr[7] = 100;
+        ihdr[8] = 8;
+        ihdr[9] = (byte) colorType;
+        chunk(out, "IHDR", ihdr);
+
+        if (colorType == 3) {
+            chunk(out, "PLTE", new byte[3 * 16]);
+        }
+        chunk(out, "tEXt", new byte[20]);
+        if (trns) {
+            chunk(out, "tRNS", new byte[6]);
+        }
+        chunk(out, "IDAT", new byte[10]);
+        return out.toByteArray();
+    }
+
+    private static void chunk(ByteArrayOutputStream out, String type, byte[] data)
+    {
+        int length = data.length;
+        out.write(length >>> 24);
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type.getBytes(), 0, 4);
+        out.write(data, 0, data.length);
+        out.write(new byte[4], 0, 4);
+    }
+
+    private static byte[] webp(String format, int bits)
+    {
+        byte[] data = new byte[30];
+        System.arraycopy("RIFF".getBytes(), 0, data, 0, 4);
+        System.arraycopy("WEBP".getBytes(), 0, data, 8, 4);
+        System.arraycopy(format.getBytes(), 0, data, 12, 4);
+        if (format.equals("VP8L")) {
+            data[20] = 0x2F;
+            data[21] = (byte) bits;
+            data[22] = (byte) (bits >>> 8);
+            data[23] = (byte) (bits >>> 16);
+            data[24] = (byte) (bits >>> 24);
+        }
+        else {
+            data[20] = (byte) bits;
+        }
+        return data;
+    }
+}
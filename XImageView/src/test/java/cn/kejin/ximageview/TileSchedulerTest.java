@@ -0,0 +1,250 @@
+package cn.kejin.ximageview;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TileSchedulerTest
+{
+    /**
+     * 第一个请求会阻塞唯一的解码线程, 后面的请求都在队列中, 按照优先级执行
+     */
+    @Test
+    public void executesByPriorityAndDropsInvalid() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<Integer> executed = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> dropped = Collections.synchronizedList(new ArrayList<Integer>());
+
+        TileScheduler scheduler = new TileScheduler("test", 1);
+        TileScheduler.Client client = scheduler.newClient(new TileScheduler.Callback()
+        {
+            @Override
+            public boolean isRequestValid(TileScheduler.Request request)
+            {
+                return request.mSampleSize == 1;
+            }
+
+            @Override
+            public void onExecute(TileScheduler.Request request)
+            {
+                if (request.mRow == -1) {
+                    started.countDown();
+                    try {
+                        blocker.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    return;
+                }
+                executed.add(request.mRow);
+                done.countDown();
+            }
+
+            @Override
+            public void onDropped(TileScheduler.Request request)
+            {
+                dropped.add(request.mRow);
+                done.countDown();
+            }
+        });
+
+        client.submit(-1, 0, 1, 0);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        client.submit(3, 0, 1, 30);
+        client.submit(1, 0, 1, 10);
+        client.submit(9, 0, 2, 0);
+        client.submit(2, 0, 1, 20);
+        blocker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        scheduler.shutdown();
+
+        assertEquals(Arrays.asList(1, 2, 3), executed);
+        assertEquals(Collections.singletonList(9), dropped);
+    }
+
+    @Test
+    public void cancelAllDropsQueuedRequests() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final List<Integer> dropped = Collections.synchronizedList(new ArrayList<Integer>());
+
+        TileScheduler scheduler = new TileScheduler("test", 1);
+        TileScheduler.Client client = scheduler.newClient(new TileScheduler.Callback()
+        {
+            @Override
+            public boolean isRequestValid(TileScheduler.Request request)
+            {
+                return true;
+            }
+
+            @Override
+            public void onExecute(TileScheduler.Request request)
+            {
+                started.countDown();
+                try {
+                    blocker.await();
+                }
+                catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+
+            @Override
+            public void onDropped(TileScheduler.Request request)
+            {
+                dropped.add(request.mRow);
+            }
+        });
+
+        client.submit(0, 0, 1, 0);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        client.submit(1, 0, 1, 0);
+        client.submit(2, 0, 1, 0);
+        client.cancelAll();
+        blocker.countDown();
+        scheduler.shutdown();
+
+        assertEquals(Arrays.asList(1, 2), dropped);
+    }
+
+    /**
+     * 两个客户端共享一个解码线程, 在屏幕上的客户端优先, 即使它的请求优先级更低
+     */
+    @Test
+    public void foregroundClientRunsFirst() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<Integer> executed = Collections.synchronizedList(new ArrayList<Integer>());
+
+        TileScheduler.Callback callback = new TileScheduler.Callback()
+        {
+            @Override
+            public boolean isRequestValid(TileScheduler.Request request)
+            {
+                return true;
+            }
+
+            @Override
+            public void onExecute(TileScheduler.Request request)
+            {
+                if (request.mRow == -1) {
+                    started.countDown();
+                    try {
+                        blocker.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    return;
+                }
+                executed.add(request.mRow);
+                done.countDown();
+            }
+
+            @Override
+            public void onDropped(TileScheduler.Request request)
+            {
+            }
+        };
+
+        TileScheduler scheduler = new TileScheduler("test", 1);
+        TileScheduler.Client background = scheduler.newClient(callback);
+        TileScheduler.Client foreground = scheduler.newClient(callback);
+        background.setForeground(false);
+
+        foreground.submit(-1, 0, 1, 0);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        background.submit(1, 0, 1, 0);
+        background.submit(2, 0, 1, 1);
+        foreground.submit(11, 0, 1, 20);
+        foreground.submit(10, 0, 1, 10);
+        blocker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        scheduler.shutdown();
+
+        assertEquals(Arrays.asList(10, 11, 1, 2), executed);
+    }
+
+    /**
+     * 排队中切换在屏幕上的客户端 (比如 ViewPager 翻页), 新的在屏幕上的客户端的请求先被执行
+     */
+    @Test
+    public void switchingForegroundReordersQueuedRequests() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+        final List<Integer> executed = Collections.synchronizedList(new ArrayList<Integer>());
+
+        TileScheduler.Callback callback = new TileScheduler.Callback()
+        {
+            @Override
+            public boolean isRequestValid(TileScheduler.Request request)
+            {
+                return true;
+            }
+
+            @Override
+            public void onExecute(TileScheduler.Request request)
+            {
+                if (request.mRow == -1) {
+                    started.countDown();
+                    try {
+                        blocker.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    return;
+                }
+                executed.add(request.mRow);
+                done.countDown();
+            }
+
+            @Override
+            public void onDropped(TileScheduler.Request request)
+            {
+            }
+        };
+
+        TileScheduler scheduler = new TileScheduler("test", 1);
+        TileScheduler.Client first = scheduler.newClient(callback);
+        TileScheduler.Client second = scheduler.newClient(callback);
+        second.setForeground(false);
+
+        first.submit(-1, 0, 1, 0);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        first.submit(1, 0, 1, 0);
+        first.submit(2, 0, 1, 1);
+        second.submit(11, 0, 1, 1);
+        second.submit(10, 0, 1, 0);
+
+        first.setForeground(false);
+        second.setForeground(true);
+        blocker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        scheduler.shutdown();
+
+        assertEquals(Arrays.asList(10, 11, 1, 2), executed);
+    }
+}
@@ -0,0 +1,210 @@
+package cn.kejin.ximageview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每一帧的几何计算的消耗, 和 BitmapManager 画图时的计算一样:
+ * 计算 sample size (getCurSampleSize), 计算可见的单元格 (getVisibleGrid),
+ * 再计算每一个可见单元格的显示区域 (getShowBitmapUnit)
+ *
+ * 图片从普通的照片到十亿像素的扫描图, 视图为 1080x1920,
+ * 每一帧的视图位置和缩放来自预先生成的轨迹 (拖动, 惯性滑动, 双击缩放, 双指缩放)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class GridGeometryBenchmark
+{
+    private final static int VIEW_WIDTH = 1080;
+    private final static int VIEW_HEIGHT = 1920;
+
+    /**
+     * 轨迹的帧数, 必须是 2^n
+     */
+    private final static int FRAMES = 4096;
+
+    /**
+     * 原图的尺寸: 照片, 长截图, 全景图, 十亿像素的扫描图
+     */
+    @Param({"4000x3000", "1080x20000", "30000x6000", "46000x23000"})
+    public String image;
+
+    @Param({"256", "512", "1024"})
+    public int tileSize;
+
+    private final GridGeometry mGeometry = new GridGeometry();
+
+    private int mImageWidth;
+    private int mImageHeight;
+
+    /**
+     * 每一帧显示的 bitmap 的尺寸, 和视图在显示的 bitmap 上的位置
+     */
+    private final float[] mShowWidth = new float[FRAMES];
+    private final float[] mShowHeight = new float[FRAMES];
+    private final int[] mViewLeft = new int[FRAMES];
+    private final int[] mViewTop = new int[FRAMES];
+    private final int[] mSampleSize = new int[FRAMES];
+
+    private final int[] mVisible = new int[4];
+    private final int[] mUnit = new int[4];
+
+    private int mFrame = 0;
+
+    @Setup
+    public void setup()
+    {
+        String[] size = image.split("x");
+        mImageWidth = Integer.parseInt(size[0]);
+        mImageHeight = Integer.parseInt(size[1]);
+        mGeometry.setImage(mImageWidth, mImageHeight, tileSize);
+
+        /**
+         * 和 BitmapManager.updateViewRect() 一样, 初始显示为刚好放进视图
+         */
+        float fit = Math.min(1f, Math.min(VIEW_WIDTH * 1f / mImageWidth, VIEW_HEIGHT * 1f / mImageHeight));
+        float maxScale = Math.max(4f, Math.max(VIEW_WIDTH * 1f / mImageWidth, VIEW_HEIGHT * 1f / mImageHeight));
+
+        Random random = new Random(mImageWidth * 31L + mImageHeight);
+        float scale = fit;
+        float cx = mImageWidth / 2f;
+        float cy = mImageHeight / 2f;
+        float vx = 0;
+        float vy = 0;
+        for (int i = 0; i < FRAMES; ++i) {
+            int phase = (i / 256) % 4;
+            switch (phase) {
+                case 0:
+                    /**
+                     * 拖动: 每一帧移动几十个像素
+                     */
+                    vx = (random.nextFloat() - 0.5f) * 80;
+                    vy = (random.nextFloat() - 0.5f) * 80;
+                    break;
+
+                case 1:
+                    /**
+                     * 惯性滑动: 速度逐渐衰减
+                     */
+                    if (i % 256 == 0) {
+                        vx = (random.nextFloat() - 0.5f) * 600;
+                        vy = (random.nextFloat() - 0.5f) * 600;
+                    }
+                    vx *= 0.97f;
+                    vy *= 0.97f;
+                    break;
+
+                case 2:
+                    /**
+                     * 双击缩放的动画: 从当前缩放到最大
+                     */
+                    scale = Math.min(maxScale, scale * 1.02f);
+                    vx = 0;
+                    vy = 0;
+                    break;
+
+                default:
+                    /**
+                     * 双指缩放: 来回缩放
+                     */
+                    scale *= 1f + (random.nextFloat() - 0.5f) * 0.1f;
+                    scale = Math.max(fit, Math.min(maxScale, scale));
+                    break;
+            }
+
+            cx = clamp(cx + vx / scale, 0, mImageWidth);
+            cy = clamp(cy + vy / scale, 0, mImageHeight);
+
+            float showWidth = mImageWidth * scale;
+            float showHeight = mImageHeight * scale;
+            mShowWidth[i] = showWidth;
+            mShowHeight[i] = showHeight;
+            mViewLeft[i] = (int) (cx * scale - VIEW_WIDTH / 2f);
+            mViewTop[i] = (int) (cy * scale - VIEW_HEIGHT / 2f);
+            mSampleSize[i] = GridGeometry.getSampleSize(mImageWidth, mImageHeight, showWidth, showHeight);
+        }
+    }
+
+    private static float clamp(float value, float min, float max)
+    {
+        return value < min ? min : (value > max ? max : value);
+    }
+
+    /**
+     * 画一帧时的全部几何计算
+     */
+    @Benchmark
+    public long frame()
+    {
+        int i = mFrame++ & (FRAMES - 1);
+        float showWidth = mShowWidth[i];
+        float showHeight = mShowHeight[i];
+        int left = mViewLeft[i];
+        int top = mViewTop[i];
+
+        int sampleSize = GridGeometry.getSampleSize(mImageWidth, mImageHeight, showWidth, showHeight);
+        mGeometry.getVisibleGrid(showWidth, showHeight, left, top, left + VIEW_WIDTH, top + VIEW_HEIGHT,
+                sampleSize, mVisible);
+
+        long checksum = sampleSize;
+        for (int n = mVisible[GridGeometry.TOP]; n <= mVisible[GridGeometry.BOTTOM]; ++n) {
+            for (int m = mVisible[GridGeometry.LEFT]; m <= mVisible[GridGeometry.RIGHT]; ++m) {
+                mGeometry.getShowUnitRect(n, m, showWidth, showHeight, mUnit);
+                checksum += mUnit[GridGeometry.RIGHT] + mUnit[GridGeometry.BOTTOM];
+            }
+        }
+
+        return checksum;
+    }
+
+    /**
+     * 只计算可见的单元格
+     */
+    @Benchmark
+    public long visibleGrid()
+    {
+        int i = mFrame++ & (FRAMES - 1);
+        int left = mViewLeft[i];
+        int top = mViewTop[i];
+        mGeometry.getVisibleGrid(mShowWidth[i], mShowHeight[i], left, top, left + VIEW_WIDTH, top + VIEW_HEIGHT,
+                mSampleSize[i], mVisible);
+
+        return mVisible[GridGeometry.RIGHT] + mVisible[GridGeometry.BOTTOM];
+    }
+
+    /**
+     * 只计算 sample size (getCurSampleSize 和 computeSampleSize)
+     */
+    @Benchmark
+    public int sampleSize()
+    {
+        int i = mFrame++ & (FRAMES - 1);
+        return GridGeometry.getSampleSize(mImageWidth, mImageHeight, mShowWidth[i], mShowHeight[i]);
+    }
+
+    /**
+     * 设置图片时重新计算网格
+     */
+    @Benchmark
+    public int setImage()
+    {
+        mGeometry.setImage(mImageWidth, mImageHeight, tileSize);
+        return mGeometry.getRows() * mGeometry.getCols();
+    }
+}